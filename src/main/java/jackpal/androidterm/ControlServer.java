@@ -0,0 +1,420 @@
+package jackpal.androidterm;
+
+import android.content.pm.PackageManager;
+import android.net.Credentials;
+import android.net.LocalServerSocket;
+import android.net.LocalSocket;
+import android.net.LocalSocketAddress;
+import android.os.Handler;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import jackpal.androidterm.emulatorview.TermSession;
+import jackpal.androidterm.util.ByteRing;
+import jackpal.androidterm.util.SessionList;
+import jackpal.androidterm.util.TermSettings;
+
+/**
+ * Lets other apps drive windows over a local socket, for automation that
+ * sends too many commands to start an Activity and bind the service for
+ * each, as the RUN_SCRIPT intent does.
+ * <p>
+ * The socket is in the abstract namespace, named after the package plus
+ * {@link #SOCKET_SUFFIX}.  A client must hold {@link #PERMISSION_RUN_SCRIPT},
+ * like a sender of RUN_SCRIPT, or be this app; others get a
+ * {@link #STATUS_DENIED} response and are disconnected.
+ * <p>
+ * Requests and responses are frames: a big-endian int length, then that
+ * many bytes.  A request is an opcode byte followed by its arguments, a
+ * response a status byte followed by its results (or, for
+ * {@link #STATUS_ERROR}, a message).  Strings are in DataOutput's modified
+ * UTF-8.  A connection may carry any number of requests, answered in order.
+ * <pre>
+ * OP_LIST                                  -> int count, count * (UTF handle, UTF title, byte flags)
+ * OP_OPEN   UTF command, boolean headless  -> UTF handle
+ * OP_WRITE  UTF handle, int length, bytes  -> (nothing)
+ * OP_READ   UTF handle, long position,
+ *           int maxBytes, int waitMillis   -> long position, int length, bytes
+ * OP_CLOSE  UTF handle                     -> (nothing)
+ * </pre>
+ * OP_READ returns raw output starting at position, counted from the first
+ * read of that window; if the output at position has been overwritten, it
+ * starts at the oldest output still held, and says where.  With nothing new
+ * to return, it waits up to waitMillis for output.  Windows without a handle
+ * are given one when they are listed.
+ */
+final class ControlServer implements Runnable {
+    private static final String TAG = "ControlServer";
+
+    static final String PERMISSION_RUN_SCRIPT = "jackpal.androidterm.permission.RUN_SCRIPT";
+    static final String SOCKET_SUFFIX = ".control";
+
+    static final int OP_LIST = 1;
+    static final int OP_OPEN = 2;
+    static final int OP_WRITE = 3;
+    static final int OP_READ = 4;
+    static final int OP_CLOSE = 5;
+
+    static final int STATUS_OK = 0;
+    static final int STATUS_NOT_FOUND = 1;
+    static final int STATUS_ERROR = 2;
+    static final int STATUS_DENIED = 3;
+
+    /** Flags in OP_LIST results */
+    static final int FLAG_HEADLESS = 1;
+    static final int FLAG_HIBERNATED = 2;
+    static final int FLAG_EXITED = 4;
+
+    private static final int MAX_FRAME = 1024 * 1024;
+    private static final int MAX_READ = 64 * 1024;
+    private static final int MAX_WAIT = 30 * 1000;
+    private static final int MAX_CLIENTS = 8;
+    private static final long MAIN_THREAD_TIMEOUT = 10;
+
+    private final TermService mService;
+    private final String mName;
+    private final Handler mHandler = new Handler();
+    private TermSettings mSettings;
+    private LocalServerSocket mSocket;
+    private volatile boolean mStopped;
+    private int mClients;
+
+    /**
+     * Must be constructed on the main thread.
+     */
+    ControlServer(TermService service, TermSettings settings) {
+        mService = service;
+        mSettings = settings;
+        mName = service.getPackageName() + SOCKET_SUFFIX;
+    }
+
+    /**
+     * The settings new windows are opened with.  Main thread.
+     */
+    void setSettings(TermSettings settings) {
+        mSettings = settings;
+    }
+
+    void start() throws IOException {
+        mSocket = new LocalServerSocket(mName);
+        Thread thread = new Thread(this, "Control socket");
+        thread.setDaemon(true);
+        thread.start();
+        Log.d(TAG, "Listening on " + mName);
+    }
+
+    void stop() {
+        mStopped = true;
+        try {
+            // accept() isn't interrupted by close(), so wake it up
+            LocalSocket wakeup = new LocalSocket();
+            wakeup.connect(new LocalSocketAddress(mName));
+            wakeup.close();
+        } catch (IOException e) {
+            // Nothing to do
+        }
+        try {
+            mSocket.close();
+        } catch (IOException e) {
+            // Nothing to do
+        }
+    }
+
+    public void run() {
+        while (!mStopped) {
+            final LocalSocket client;
+            try {
+                client = mSocket.accept();
+            } catch (IOException e) {
+                if (!mStopped) {
+                    Log.e(TAG, "accept() failed", e);
+                }
+                return;
+            }
+            if (mStopped) {
+                closeQuietly(client);
+                return;
+            }
+            synchronized (this) {
+                if (mClients >= MAX_CLIENTS) {
+                    closeQuietly(client);
+                    continue;
+                }
+                mClients++;
+            }
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        serve(client);
+                    } catch (EOFException e) {
+                        // Client hung up
+                    } catch (IOException e) {
+                        Log.d(TAG, "Control client dropped: " + e.getMessage());
+                    } finally {
+                        closeQuietly(client);
+                        synchronized (ControlServer.this) {
+                            mClients--;
+                        }
+                    }
+                }
+            }, "Control client");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private void serve(LocalSocket client) throws IOException {
+        DataInputStream in = new DataInputStream(client.getInputStream());
+        OutputStream out = client.getOutputStream();
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        DataOutputStream result = new DataOutputStream(response);
+
+        if (!isAllowed(client.getPeerCredentials())) {
+            result.writeByte(STATUS_DENIED);
+            sendFrame(out, response);
+            return;
+        }
+
+        byte[] frame = new byte[256];
+        while (!mStopped) {
+            int length = in.readInt();
+            if (length <= 0 || length > MAX_FRAME) {
+                throw new IOException("Bad frame length " + length);
+            }
+            if (frame.length < length) {
+                frame = new byte[length];
+            }
+            in.readFully(frame, 0, length);
+            response.reset();
+            try {
+                handle(new DataInputStream(new ByteArrayInputStream(frame, 0, length)), result);
+            } catch (EOFException e) {
+                response.reset();
+                result.writeByte(STATUS_ERROR);
+                result.writeUTF("Truncated request");
+            } catch (IOException e) {
+                response.reset();
+                result.writeByte(STATUS_ERROR);
+                result.writeUTF(String.valueOf(e.getMessage()));
+            } catch (RuntimeException e) {
+                // A bad request mustn't take the app down with it
+                Log.w(TAG, "Control request failed", e);
+                response.reset();
+                result.writeByte(STATUS_ERROR);
+                result.writeUTF(String.valueOf(e));
+            }
+            sendFrame(out, response);
+        }
+    }
+
+    /* The same check the system makes for RUN_SCRIPT intents */
+    private boolean isAllowed(Credentials peer) {
+        if (peer == null) {
+            return false;
+        }
+        if (peer.getUid() == Process.myUid()) {
+            return true;
+        }
+        return mService.checkPermission(PERMISSION_RUN_SCRIPT, peer.getPid(), peer.getUid())
+                == PackageManager.PERMISSION_GRANTED;
+    }
+
+    private static void sendFrame(OutputStream out, ByteArrayOutputStream payload)
+            throws IOException {
+        int length = payload.size();
+        out.write(new byte[] {
+            (byte) (length >>> 24), (byte) (length >>> 16), (byte) (length >>> 8), (byte) length
+        });
+        payload.writeTo(out);
+        out.flush();
+    }
+
+    private void handle(DataInputStream request, final DataOutputStream result)
+            throws IOException {
+        int op = request.readUnsignedByte();
+        switch (op) {
+        case OP_LIST:
+            onMainThread(new Callable<Void>() {
+                public Void call() throws IOException {
+                    list(result);
+                    return null;
+                }
+            });
+            break;
+        case OP_OPEN: {
+            final String command = request.readUTF();
+            final boolean headless = request.readBoolean();
+            String handle = onMainThread(new Callable<String>() {
+                public String call() {
+                    return RemoteInterface.openNewWindow(mService, mSettings,
+                            command.length() > 0 ? command : null, headless);
+                }
+            });
+            result.writeByte(STATUS_OK);
+            result.writeUTF(handle);
+            break;
+        }
+        case OP_WRITE: {
+            String handle = request.readUTF();
+            int length = request.readInt();
+            // What's left of the request is all the data there can be
+            if (length < 0 || length > request.available()) {
+                throw new IOException("Bad write length " + length);
+            }
+            final byte[] data = new byte[length];
+            request.readFully(data);
+            final ShellTermSession session = findSession(handle);
+            if (session == null) {
+                result.writeByte(STATUS_NOT_FOUND);
+                break;
+            }
+            onMainThread(new Callable<Void>() {
+                public Void call() {
+                    session.write(data, 0, data.length);
+                    return null;
+                }
+            });
+            result.writeByte(STATUS_OK);
+            break;
+        }
+        case OP_READ: {
+            String handle = request.readUTF();
+            long position = request.readLong();
+            int max = Math.min(Math.max(request.readInt(), 0), MAX_READ);
+            int wait = Math.min(Math.max(request.readInt(), 0), MAX_WAIT);
+            ShellTermSession session = findSession(handle);
+            if (session == null) {
+                result.writeByte(STATUS_NOT_FOUND);
+                break;
+            }
+            read(session.getControlOutput(), position, max, wait, result);
+            break;
+        }
+        case OP_CLOSE: {
+            String handle = request.readUTF();
+            final ShellTermSession session = findSession(handle);
+            if (session == null) {
+                result.writeByte(STATUS_NOT_FOUND);
+                break;
+            }
+            onMainThread(new Callable<Void>() {
+                public Void call() {
+                    session.finish();
+                    return null;
+                }
+            });
+            result.writeByte(STATUS_OK);
+            break;
+        }
+        default:
+            throw new IOException("Unknown request " + op);
+        }
+    }
+
+    /* Main thread */
+    private void list(DataOutputStream result) throws IOException {
+        SessionList sessions = mService.getSessions();
+        result.writeByte(STATUS_OK);
+        result.writeInt(sessions.size());
+        for (int i = 0; i < sessions.size(); ++i) {
+            TermSession s = sessions.get(i);
+            String defaultTitle = mService.getString(R.string.window_title, i + 1);
+            if (!(s instanceof ShellTermSession)) {
+                result.writeUTF("");
+                result.writeUTF(defaultTitle);
+                result.writeByte(0);
+                continue;
+            }
+            ShellTermSession session = (ShellTermSession) s;
+            if (session.getHandle() == null) {
+                session.setHandle(UUID.randomUUID().toString());
+                sessions.handleChanged(session);
+            }
+            int flags = 0;
+            if (session.isHeadless()) {
+                flags |= FLAG_HEADLESS;
+            }
+            if (session.isHibernated()) {
+                flags |= FLAG_HIBERNATED;
+            }
+            if (session.getEndStat()) {
+                flags |= FLAG_EXITED;
+            }
+            result.writeUTF(session.getHandle());
+            result.writeUTF(session.getTitle(defaultTitle));
+            result.writeByte(flags);
+        }
+    }
+
+    private static void read(ByteRing output, long position, int max, int wait,
+            DataOutputStream result) throws IOException {
+        byte[] data = new byte[max];
+        long start;
+        int count;
+        synchronized (output) {
+            long deadline = System.currentTimeMillis() + wait;
+            long remaining = wait;
+            while (output.getTotalWritten() <= position && remaining > 0) {
+                try {
+                    output.wait(remaining);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                remaining = deadline - System.currentTimeMillis();
+            }
+            start = Math.max(position, output.getDiscarded());
+            count = output.read(start, data, 0, max);
+        }
+        result.writeByte(STATUS_OK);
+        result.writeLong(start);
+        result.writeInt(count);
+        result.write(data, 0, count);
+    }
+
+    private ShellTermSession findSession(String handle) {
+        TermSession session = mService.getSessions().findByHandle(handle);
+        return session instanceof ShellTermSession ? (ShellTermSession) session : null;
+    }
+
+    /* TermSession isn't thread safe, so sessions are used on the main thread */
+    private <T> T onMainThread(Callable<T> task) throws IOException {
+        FutureTask<T> future = new FutureTask<T>(task);
+        mHandler.post(future);
+        try {
+            return future.get(MAIN_THREAD_TIMEOUT, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(String.valueOf(cause));
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted");
+        } catch (TimeoutException e) {
+            future.cancel(false);
+            throw new IOException("Timed out");
+        }
+    }
+
+    private static void closeQuietly(LocalSocket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Nothing to do
+        }
+    }
+}
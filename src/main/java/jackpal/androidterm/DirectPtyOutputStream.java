@@ -0,0 +1,194 @@
+package jackpal.androidterm;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import jackpal.androidterm.util.ByteBufferPool;
+
+/**
+ * Writes to a pty through pooled direct ByteBuffers, coalescing small
+ * writes.
+ * <p>
+ * Bytes written are collected in a chain of pooled segments.  flush() does
+ * not write them out at once: the first flush of a batch schedules the
+ * write on the Looper given to the constructor a few milliseconds later, so
+ * keystrokes, pastes and remote commands arriving in that window go out
+ * together in a single writev() with {@link Exec#writevDirect}.  That
+ * Looper must belong to a background thread, as writev() blocks while the
+ * pty's input queue is full.  A batch that fills every segment is written
+ * straight away, on the thread that filled it.
+ * <p>
+ * Closing the stream returns the segments to the pool; the file descriptor
+ * itself is left open, as it is owned by the session.
+ */
+class DirectPtyOutputStream extends OutputStream {
+    /** Longest a flushed byte may wait before it is written, in ms */
+    static final long MAX_WRITE_DELAY = 4;
+    private static final int MAX_SEGMENTS = 16;
+
+    private final FileDescriptor mFd;
+    private final ByteBufferPool mPool;
+    private final ByteBuffer[] mSegments = new ByteBuffer[MAX_SEGMENTS];
+    private final int[] mCounts = new int[MAX_SEGMENTS];
+    private int mSegmentCount;
+    private boolean mClosed;
+
+    // Time the oldest pending byte was written to us
+    private long mBatchStart;
+    private final Handler mHandler;
+    private boolean mDrainScheduled;
+
+    private long mBytesWritten;
+    private long mSyscalls;
+    private long mBatches;
+    private long mTotalDelay;
+    private long mMaxDelay;
+
+    private final Runnable mDrain = new Runnable() {
+        public void run() {
+            synchronized (DirectPtyOutputStream.this) {
+                mDrainScheduled = false;
+                try {
+                    drain();
+                } catch (IOException e) {
+                    // The shell is gone; the reaper will report it
+                }
+            }
+        }
+    };
+
+    /**
+     * @param looper where batches are written; not the main thread's.
+     */
+    DirectPtyOutputStream(FileDescriptor fd, ByteBufferPool pool, Looper looper) {
+        mFd = fd;
+        mPool = pool;
+        mHandler = new Handler(looper);
+    }
+
+    @Override
+    public synchronized void write(int b) throws IOException {
+        ByteBuffer segment = segmentWithRoom();
+        segment.put((byte) b);
+        mCounts[mSegmentCount - 1]++;
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int offset, int count) throws IOException {
+        while (count > 0) {
+            ByteBuffer segment = segmentWithRoom();
+            int chunk = Math.min(count, segment.remaining());
+            segment.put(b, offset, chunk);
+            mCounts[mSegmentCount - 1] += chunk;
+            offset += chunk;
+            count -= chunk;
+        }
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        checkOpen();
+        if (mSegmentCount == 0 || mDrainScheduled) {
+            return;
+        }
+        long delay = MAX_WRITE_DELAY - (SystemClock.uptimeMillis() - mBatchStart);
+        mDrainScheduled = true;
+        mHandler.postDelayed(mDrain, Math.max(0, delay));
+    }
+
+    @Override
+    public synchronized void close() {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        mHandler.removeCallbacks(mDrain);
+        for (int i = 0; i < mSegmentCount; ++i) {
+            mPool.release(mSegments[i]);
+            mSegments[i] = null;
+        }
+        mSegmentCount = 0;
+    }
+
+    /** Total bytes written to the pty */
+    public synchronized long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    /** Number of writev() calls made */
+    public synchronized long getSyscalls() {
+        return mSyscalls;
+    }
+
+    /** Number of batches written */
+    public synchronized long getBatches() {
+        return mBatches;
+    }
+
+    /** Sum over all batches of the time the oldest byte waited, in ms */
+    public synchronized long getTotalQueueDelay() {
+        return mTotalDelay;
+    }
+
+    /** Longest time any byte waited before being written, in ms */
+    public synchronized long getMaxQueueDelay() {
+        return mMaxDelay;
+    }
+
+    private ByteBuffer segmentWithRoom() throws IOException {
+        checkOpen();
+        if (mSegmentCount == 0) {
+            mBatchStart = SystemClock.uptimeMillis();
+        } else if (mSegments[mSegmentCount - 1].hasRemaining()) {
+            return mSegments[mSegmentCount - 1];
+        }
+        if (mSegmentCount == MAX_SEGMENTS) {
+            // Batch is full; write it out now and start over
+            drain();
+            mBatchStart = SystemClock.uptimeMillis();
+        }
+        ByteBuffer segment = mPool.acquire();
+        mSegments[mSegmentCount] = segment;
+        mCounts[mSegmentCount] = 0;
+        mSegmentCount++;
+        return segment;
+    }
+
+    private void drain() throws IOException {
+        if (mClosed || mSegmentCount == 0) {
+            return;
+        }
+        int count = mSegmentCount;
+        long bytes = 0;
+        for (int i = 0; i < count; ++i) {
+            bytes += mCounts[i];
+        }
+        try {
+            mSyscalls += Exec.writevDirect(mFd, mSegments, mCounts, count);
+        } finally {
+            for (int i = 0; i < count; ++i) {
+                mPool.release(mSegments[i]);
+                mSegments[i] = null;
+            }
+            mSegmentCount = 0;
+        }
+
+        long delay = SystemClock.uptimeMillis() - mBatchStart;
+        mBytesWritten += bytes;
+        mBatches++;
+        mTotalDelay += delay;
+        mMaxDelay = Math.max(mMaxDelay, delay);
+    }
+
+    private void checkOpen() throws IOException {
+        if (mClosed) {
+            throw new IOException("stream closed");
+        }
+    }
+}
@@ -17,6 +17,8 @@
 package jackpal.androidterm;
 
 import java.io.FileDescriptor;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * Utility methods for creating and managing a subprocess.
@@ -51,6 +53,25 @@ public class Exec
      */
     public static native FileDescriptor createSubprocess(
         String cmd, String[] args, String[] envVars, int[] processId);
+
+    /**
+     * Create a subprocess attached to a pty, as above, but without copying
+     * the caller's address space: the child is started with vfork() and
+     * exec()s straight away.  The pty is given its window size, the
+     * working directory is changed and all inherited file descriptors other
+     * than stdin/stdout/stderr are closed before the command runs.
+     *
+     * @param envVars Strings of the form "VAR=value" which are added to, or
+     * replace entries in, the current environment.
+     * @param cwd The working directory for the command, or null to inherit
+     * ours.
+     * @param rows The initial height of the pty, or 0 to leave it unset.
+     * @param columns The initial width of the pty, or 0 to leave it unset.
+     * @return the file descriptor of the started process.
+     */
+    public static native FileDescriptor createSubprocess(
+        String cmd, String[] args, String[] envVars, String cwd,
+        int rows, int columns, int[] processId);
         
     /**
      * Set the widow size for a given pty. Allows programs
@@ -84,5 +105,103 @@ public class Exec
      * Send SIGHUP to a process group.
      */
     public static native void hangupProcessGroup(int processId);
+
+    /**
+     * Create an epoll set used to wait on many ptys from one thread.
+     *
+     * @return the raw file descriptor of the epoll set, or -1 on failure.
+     */
+    public static native int createMultiplexer();
+
+    /**
+     * Add a pty to a multiplexer.  The pty is watched in one-shot mode: after
+     * it is reported readable once, it must be rearmed with
+     * multiplexerRearm() before it will be reported again.
+     *
+     * @param token A nonzero value reported by multiplexerWait() when the
+     * pty is readable.
+     */
+    public static native boolean multiplexerAdd(int muxFd, FileDescriptor fd,
+       int token);
+
+    /**
+     * Re-enable readiness reporting for a pty after it was reported once.
+     */
+    public static native boolean multiplexerRearm(int muxFd, FileDescriptor fd,
+       int token);
+
+    /**
+     * Remove a pty from a multiplexer.  Must be called before the pty is
+     * closed.
+     */
+    public static native void multiplexerRemove(int muxFd, FileDescriptor fd);
+
+    /**
+     * Wait for any pty in a multiplexer to become readable.
+     *
+     * @param readyTokens Receives the tokens of the ready ptys.
+     * @param timeoutMillis Maximum time to wait, or -1 to wait forever.
+     * @return the number of tokens written, or -1 on error.
+     */
+    public static native int multiplexerWait(int muxFd, int[] readyTokens,
+       int timeoutMillis);
+
+    /**
+     * Read from a file descriptor straight into a direct ByteBuffer.  The
+     * buffer's position and limit are ignored and left unchanged.
+     *
+     * @return the number of bytes read, or -1 at end of file or when the
+     * other side of a pty has hung up.
+     * @throws IOException on any other read error.
+     */
+    public static native int readDirect(FileDescriptor fd, ByteBuffer buffer,
+       int offset, int count) throws IOException;
+
+    /**
+     * Write all of a region of a direct ByteBuffer to a file descriptor.
+     * The buffer's position and limit are ignored and left unchanged.
+     *
+     * @return the number of bytes written, which is always count.
+     */
+    public static native int writeDirect(FileDescriptor fd, ByteBuffer buffer,
+       int offset, int count) throws IOException;
+
+    /**
+     * Write the start of several direct ByteBuffers to a file descriptor in
+     * one writev() call, retrying until everything has been written.
+     *
+     * @param counts The number of bytes to write from the start of each
+     * buffer.
+     * @param segmentCount The number of buffers to write, at most 64.
+     * @return the number of writev() calls that were needed.
+     */
+    public static native int writevDirect(FileDescriptor fd, ByteBuffer[] buffers,
+       int[] counts, int segmentCount) throws IOException;
+
+    /**
+     * Set up the process-wide child reaper.  Uses pidfds where the kernel
+     * supports them and the platform lets apps use them (API 31 and up),
+     * and a SIGCHLD handler otherwise.  Safe to call more than once.
+     *
+     * @param sdk The platform's SDK level.
+     */
+    public static native boolean reaperInit(int sdk);
+
+    /**
+     * Ask the reaper to collect a child when it exits.
+     *
+     * @return false if the child couldn't be watched; the caller should fall
+     * back to waitFor().
+     */
+    public static native boolean reaperWatch(int processId);
+
+    /**
+     * Block until at least one watched child has exited (or the wait is
+     * interrupted) and collect it.
+     *
+     * @param exits Receives (process ID, exit value) pairs.
+     * @return the number of pairs written, or -1 on error.
+     */
+    public static native int reaperWait(int[] exits);
 }
 
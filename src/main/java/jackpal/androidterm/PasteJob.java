@@ -0,0 +1,178 @@
+package jackpal.androidterm;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+import jackpal.androidterm.emulatorview.TermSession;
+
+/**
+ * Types a large piece of text into a session a chunk at a time, on a
+ * background thread.
+ * <p>
+ * The text is encoded to UTF-8 as it goes, so no second copy of it is made.
+ * After each chunk we wait for the shell to catch up before sending the
+ * next: until it has echoed about half the chunk back, or until its output
+ * has stalled for {@link #IDLE_TIMEOUT} ms (for programs that don't echo).
+ * Chunks are cut after a newline where possible, so a line is never split
+ * across the wait.
+ * <p>
+ * With bracketed paste on, the text is wrapped in ESC [200~ and ESC [201~
+ * so that programs which understand it can tell pasted text from typing.
+ */
+final class PasteJob implements Runnable {
+    private static final String TAG = "PasteJob";
+
+    /** Text shorter than this, in characters, is written in one go */
+    static final int MIN_PACED_LENGTH = 16 * 1024;
+    private static final int CHUNK_SIZE = 1024;
+    private static final long IDLE_TIMEOUT = 20;
+    private static final long POLL_INTERVAL = 2;
+    private static final long PROGRESS_INTERVAL = 100;
+
+    private static final byte[] BRACKET_START = { 27, '[', '2', '0', '0', '~' };
+    private static final byte[] BRACKET_END = { 27, '[', '2', '0', '1', '~' };
+
+    /**
+     * Told about a paste's progress, on the main thread.
+     */
+    interface Listener {
+        void onPasteProgress(int charsDone, int charsTotal);
+
+        void onPasteFinished(boolean cancelled);
+    }
+
+    private final TermSession mSession;
+    private final CharSequence mText;
+    private final boolean mBracketed;
+    private final Listener mListener;
+    private final Handler mHandler = new Handler();
+    private volatile boolean mCancelled;
+
+    /**
+     * Must be constructed on the main thread.
+     */
+    PasteJob(TermSession session, CharSequence text, boolean bracketed, Listener listener) {
+        mSession = session;
+        mText = text;
+        mBracketed = bracketed;
+        mListener = listener;
+    }
+
+    void start() {
+        Thread thread = new Thread(this, "Paste");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stop after the chunk being written.  If the paste was bracketed, the
+     * closing marker is still sent.
+     */
+    void cancel() {
+        mCancelled = true;
+    }
+
+    public void run() {
+        CharsetEncoder encoder = Charset.forName("UTF-8").newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        CharBuffer in = CharBuffer.wrap(mText);
+        ByteBuffer out = ByteBuffer.allocate(CHUNK_SIZE);
+        byte[] chunk = new byte[CHUNK_SIZE];
+        final int total = mText.length();
+        long lastProgress = 0;
+
+        if (mBracketed) {
+            mSession.write(BRACKET_START, 0, BRACKET_START.length);
+        }
+        boolean done = false;
+        while (!done && !mCancelled) {
+            CoderResult result = encoder.encode(in, out, true);
+            if (result.isUnderflow()) {
+                encoder.flush(out);
+                done = true;
+            }
+            out.flip();
+            int length = chunkLength(out, done);
+            out.get(chunk, 0, length);
+            out.compact();
+
+            long before = getBytesRead();
+            mSession.write(chunk, 0, length);
+            waitForShell(before, length);
+
+            long now = SystemClock.uptimeMillis();
+            if (now - lastProgress >= PROGRESS_INTERVAL) {
+                lastProgress = now;
+                final int position = in.position();
+                mHandler.post(new Runnable() {
+                    public void run() {
+                        mListener.onPasteProgress(position, total);
+                    }
+                });
+            }
+        }
+        if (mBracketed) {
+            mSession.write(BRACKET_END, 0, BRACKET_END.length);
+        }
+
+        final boolean cancelled = mCancelled;
+        if (cancelled) {
+            Log.d(TAG, "Paste cancelled at " + in.position() + " of " + total);
+        }
+        mHandler.post(new Runnable() {
+            public void run() {
+                mListener.onPasteFinished(cancelled);
+            }
+        });
+    }
+
+    /* Bytes to send from out: up to the last newline, unless there is none
+       or this is the end of the text */
+    private static int chunkLength(ByteBuffer out, boolean last) {
+        int length = out.remaining();
+        if (last || length < out.capacity()) {
+            return length;
+        }
+        for (int i = out.limit() - 1; i >= out.position(); --i) {
+            if (out.get(i) == '\n') {
+                return i - out.position() + 1;
+            }
+        }
+        return length;
+    }
+
+    private long getBytesRead() {
+        if (mSession instanceof ShellTermSession) {
+            return ((ShellTermSession) mSession).getBytesRead();
+        }
+        return 0;
+    }
+
+    private void waitForShell(long before, int written) {
+        long echoed = before;
+        long lastChange = SystemClock.uptimeMillis();
+        while (!mCancelled) {
+            long read = getBytesRead();
+            if (read - before >= written / 2) {
+                return;
+            }
+            long now = SystemClock.uptimeMillis();
+            if (read != echoed) {
+                echoed = read;
+                lastChange = now;
+            } else if (now - lastChange >= IDLE_TIMEOUT) {
+                return;
+            }
+            SystemClock.sleep(POLL_INTERVAL);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package jackpal.androidterm;
+
+import android.os.SystemClock;
+
+import java.io.File;
+import java.util.HashMap;
+
+import jackpal.androidterm.compat.FileCompat;
+
+/**
+ * Remembers which PATH entries exist and are searchable.
+ * <p>
+ * Verifying a PATH means a stat and an access check per directory, which is
+ * slow on external and FUSE storage.  Results are kept per PATH string.
+ * Within REVALIDATE_INTERVAL of the last check a cached result is used
+ * without touching the file system; after that, the directories' mtimes and
+ * ctimes are compared with the recorded ones and the full check is only
+ * redone if one of them changed (or a directory appeared or vanished).  The
+ * ctime catches a chmod, which can make a directory unsearchable without
+ * touching its mtime.  Both come from one stat per directory.
+ * <p>
+ * The times only have a resolution of one second, so a change made in the
+ * same second as a check, just after it, wouldn't show.  A check made
+ * while any directory's times were that recent is therefore not trusted,
+ * and is redone once REVALIDATE_INTERVAL has passed.
+ */
+final class PathCache {
+    private static final long REVALIDATE_INTERVAL = 30 * 1000;
+    private static final int MAX_ENTRIES = 8;
+
+    private static class Entry {
+        final File[] dirs;
+        final long[] mtimes;
+        final long[] ctimes;
+        final String checkedPath;
+        // A directory changed in the second of the check
+        final boolean racy;
+        long validatedAt;
+
+        Entry(File[] dirs, long[] mtimes, long[] ctimes, String checkedPath, boolean racy) {
+            this.dirs = dirs;
+            this.mtimes = mtimes;
+            this.ctimes = ctimes;
+            this.racy = racy;
+            this.checkedPath = checkedPath;
+            this.validatedAt = SystemClock.uptimeMillis();
+        }
+    }
+
+    private static final HashMap<String, Entry> sEntries = new HashMap<String, Entry>();
+    private static int sHits;
+    private static int sMisses;
+
+    private PathCache() {
+    }
+
+    /**
+     * Remove directories that don't exist or can't be searched from a
+     * colon-separated path.
+     */
+    static synchronized String verify(String path) {
+        Entry entry = sEntries.get(path);
+        if (entry != null) {
+            long now = SystemClock.uptimeMillis();
+            if (now - entry.validatedAt < REVALIDATE_INTERVAL || unchanged(entry)) {
+                entry.validatedAt = now;
+                ++sHits;
+                return entry.checkedPath;
+            }
+        }
+
+        ++sMisses;
+        entry = check(path);
+        if (sEntries.size() >= MAX_ENTRIES) {
+            sEntries.clear();
+        }
+        sEntries.put(path, entry);
+        return entry.checkedPath;
+    }
+
+    /** Number of verify() calls answered from the cache */
+    static synchronized int getHits() {
+        return sHits;
+    }
+
+    /** Number of verify() calls that checked every directory */
+    static synchronized int getMisses() {
+        return sMisses;
+    }
+
+    private static boolean unchanged(Entry entry) {
+        if (entry.racy) {
+            return false;
+        }
+        for (int i = 0; i < entry.dirs.length; ++i) {
+            // Both are 0 for a missing directory
+            long[] times = FileCompat.getTimes(entry.dirs[i]);
+            if (times[0] != entry.mtimes[i] || times[1] != entry.ctimes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Entry check(String path) {
+        String[] dirnames = path.split(":");
+        File[] dirs = new File[dirnames.length];
+        long[] mtimes = new long[dirnames.length];
+        long[] ctimes = new long[dirnames.length];
+        // Times from the last whole second, or later, may not be final yet
+        long settled = System.currentTimeMillis() / 1000 * 1000 - 1000;
+        boolean racy = false;
+        StringBuilder checkedPath = new StringBuilder(path.length());
+        for (int i = 0; i < dirnames.length; ++i) {
+            File dir = new File(dirnames[i]);
+            dirs[i] = dir;
+            long[] times = FileCompat.getTimes(dir);
+            mtimes[i] = times[0];
+            ctimes[i] = times[1];
+            racy |= Math.max(times[0], times[1]) > settled;
+            if (dir.isDirectory() && FileCompat.canExecute(dir)) {
+                checkedPath.append(dirnames[i]);
+                checkedPath.append(":");
+            }
+        }
+        String checked = (checkedPath.length() > 0)
+                ? checkedPath.substring(0, checkedPath.length()-1) : "";
+        return new Entry(dirs, mtimes, ctimes, checked, racy);
+    }
+}
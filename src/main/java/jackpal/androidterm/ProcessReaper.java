@@ -0,0 +1,116 @@
+package jackpal.androidterm;
+
+import android.util.Log;
+import android.util.SparseArray;
+
+import jackpal.androidterm.compat.AndroidCompat;
+
+/**
+ * Collects the exit status of every session's shell from one thread.
+ * <p>
+ * Replaces a thread per session blocked in {@link Exec#waitFor}: children
+ * are handed to the native reaper in Exec, which reports exits as they
+ * happen.  If the native reaper can't take a child, a private watcher thread
+ * is started for it as before.
+ */
+final class ProcessReaper implements Runnable {
+    private static final String TAG = "ProcessReaper";
+
+    private static final int MAX_EXITS = 32;
+
+    interface Listener {
+        /**
+         * Called on the reaper thread once the process has exited and been
+         * reaped.
+         *
+         * @param result The exit value, as returned by Exec.waitFor().
+         */
+        void onProcessExit(int processId, int result);
+    }
+
+    private static ProcessReaper sInstance;
+
+    private final SparseArray<Listener> mListeners = new SparseArray<Listener>();
+    private final boolean mNativeReaper;
+
+    public static synchronized ProcessReaper getInstance() {
+        if (sInstance == null) {
+            sInstance = new ProcessReaper();
+        }
+        return sInstance;
+    }
+
+    private ProcessReaper() {
+        mNativeReaper = Exec.reaperInit(AndroidCompat.SDK);
+        if (mNativeReaper) {
+            Thread thread = new Thread(this, "Process reaper");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Report the exit of a process to a listener.  The process must be a
+     * child of ours and must not be waited for by anybody else.
+     */
+    public void watch(final int processId, final Listener listener) {
+        synchronized (mListeners) {
+            mListeners.put(processId, listener);
+        }
+        if (mNativeReaper && Exec.reaperWatch(processId)) {
+            return;
+        }
+
+        Thread watcher = new Thread() {
+            @Override
+            public void run() {
+                Log.i(TermDebug.LOG_TAG, "waiting for: " + processId);
+                int result = Exec.waitFor(processId);
+                report(processId, result);
+            }
+        };
+        watcher.setName("Process watcher");
+        watcher.start();
+    }
+
+    public void run() {
+        int[] exits = new int[MAX_EXITS * 2];
+        while (true) {
+            int count = Exec.reaperWait(exits);
+            if (count < 0) {
+                Log.e(TAG, "reaperWait failed, child reaper stopped");
+                return;
+            }
+            for (int i = 0; i < count; ++i) {
+                report(exits[i * 2], exits[i * 2 + 1]);
+            }
+        }
+    }
+
+    /**
+     * Report the exit of a process already being watched to a different
+     * listener, instead of the one given to {@link #watch}.
+     *
+     * @return false if the process has already exited and been reported.
+     */
+    public boolean setListener(int processId, Listener listener) {
+        synchronized (mListeners) {
+            if (mListeners.get(processId) == null) {
+                return false;
+            }
+            mListeners.put(processId, listener);
+            return true;
+        }
+    }
+
+    private void report(int processId, int result) {
+        Listener listener;
+        synchronized (mListeners) {
+            listener = mListeners.get(processId);
+            mListeners.remove(processId);
+        }
+        if (listener != null) {
+            listener.onProcessExit(processId, result);
+        }
+    }
+}
@@ -0,0 +1,327 @@
+package jackpal.androidterm;
+
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import jackpal.androidterm.util.ByteBufferPool;
+
+/**
+ * Reads the ptys of all sessions from a single I/O thread.
+ * <p>
+ * Each pty is registered with one process-wide epoll set in one-shot mode.
+ * When a pty becomes readable, the I/O thread reads one chunk into the
+ * client's buffer and hands it over; the pty is not watched again until the
+ * client has consumed the chunk and calls {@link #rearm}.  A session whose
+ * output isn't being consumed therefore just leaves data in the kernel, and
+ * the writing process blocks, instead of growing a queue in our heap.
+ * <p>
+ * The foreground session is always serviced first when several ptys are
+ * ready at once.
+ * <p>
+ * Registrations in direct mode read with {@link Exec#readDirect} into a
+ * direct ByteBuffer taken from a shared pool, rather than going through a
+ * FileInputStream.  A buffer is only returned to the pool if the client
+ * had consumed its last chunk when the registration was removed.
+ * <p>
+ * A client that throws from a callback loses its registration, as if its
+ * pty had hung up; the I/O thread carries on with the others.
+ * <p>
+ * Writes go the other way on a second shared thread, see
+ * {@link #getWriterLooper}.
+ */
+final class PtyMultiplexer implements Runnable {
+    private static final String TAG = "PtyMultiplexer";
+
+    private static final int BUFFER_SIZE = 4096;
+    private static final int MAX_EVENTS = 64;
+    private static final int MAX_POOLED_BUFFERS = 16;
+
+    private static final ByteBufferPool sBufferPool =
+        new ByteBufferPool(BUFFER_SIZE, MAX_POOLED_BUFFERS);
+    private static HandlerThread sWriter;
+
+    /**
+     * Receives data read from a registered pty.  Both methods are called on
+     * the multiplexer's I/O thread.
+     */
+    interface Client {
+        /**
+         * A chunk was read from the pty.  The buffer belongs to the client
+         * until it calls {@link PtyMultiplexer#rearm}; if it unregisters
+         * first, the buffer is left to it and never read into again.
+         *
+         * @param foreground True if this is the session the user is looking
+         *     at.
+         */
+        void onPtyInput(byte[] buffer, int offset, int count, boolean foreground);
+
+        /**
+         * The pty was hung up.  The registration has already been removed.
+         */
+        void onPtyHangup();
+    }
+
+    private static class Registration {
+        final FileDescriptor fd;
+        volatile Client client;
+        FileInputStream in;
+        ByteBuffer direct;
+        byte[] buffer;
+        int offset;
+        boolean closed;
+        // A chunk has been handed to the client and not yet consumed
+        boolean busy;
+
+        Registration(FileDescriptor fd, Client client, boolean useDirect) {
+            this.fd = fd;
+            this.client = client;
+            if (useDirect) {
+                direct = sBufferPool.acquire();
+                if (direct.hasArray()) {
+                    // Android's direct buffers sit on a non-movable array,
+                    // which the emulator can consume without another copy
+                    buffer = direct.array();
+                    offset = direct.arrayOffset();
+                } else {
+                    buffer = new byte[BUFFER_SIZE];
+                }
+            } else {
+                in = new FileInputStream(fd);
+                buffer = new byte[BUFFER_SIZE];
+            }
+        }
+
+        int read() throws IOException {
+            if (direct == null) {
+                return in.read(buffer, 0, buffer.length);
+            }
+            int read = Exec.readDirect(fd, direct, 0, BUFFER_SIZE);
+            if (read > 0 && !direct.hasArray()) {
+                direct.clear();
+                direct.get(buffer, 0, read);
+            }
+            return read;
+        }
+
+        synchronized void close() {
+            closed = true;
+            if (direct != null) {
+                /* A chunk still queued for the client lives in this buffer,
+                   so it mustn't go back to the pool for another pty to
+                   read into; the garbage collector gets it instead */
+                if (!busy) {
+                    sBufferPool.release(direct);
+                }
+                direct = null;
+            }
+        }
+    }
+
+    private static PtyMultiplexer sInstance;
+
+    private final int mMuxFd;
+    private final SparseArray<Registration> mRegistrations = new SparseArray<Registration>();
+    private int mNextToken = 1;
+    private volatile int mForegroundToken = 0;
+    private Thread mThread;
+
+    public static synchronized PtyMultiplexer getInstance() {
+        if (sInstance == null) {
+            sInstance = new PtyMultiplexer();
+        }
+        return sInstance;
+    }
+
+    private PtyMultiplexer() {
+        mMuxFd = Exec.createMultiplexer();
+    }
+
+    /**
+     * The pool the multiplexer takes its direct read buffers from, also
+     * suitable for other pty traffic.
+     */
+    public static ByteBufferPool getBufferPool() {
+        return sBufferPool;
+    }
+
+    /**
+     * The Looper of the thread all sessions' {@link DirectPtyOutputStream}s
+     * write on, started when first asked for.  A shell that stops reading
+     * its input holds up the others' writes until its pty has room again.
+     */
+    public static synchronized Looper getWriterLooper() {
+        if (sWriter == null) {
+            sWriter = new HandlerThread("Pty output");
+            sWriter.setDaemon(true);
+            sWriter.start();
+        }
+        return sWriter.getLooper();
+    }
+
+    /**
+     * Start watching a pty.
+     *
+     * @param direct Read with {@link Exec#readDirect} into a pooled direct
+     *     buffer instead of through a FileInputStream.
+     * @return a token identifying the registration, or 0 on failure.
+     */
+    public synchronized int register(FileDescriptor fd, Client client, boolean direct) {
+        if (mMuxFd < 0) {
+            return 0;
+        }
+        int token = mNextToken++;
+        Registration reg = new Registration(fd, client, direct);
+        mRegistrations.put(token, reg);
+        if (!Exec.multiplexerAdd(mMuxFd, fd, token)) {
+            mRegistrations.remove(token);
+            reg.close();
+            return 0;
+        }
+        if (mThread == null) {
+            mThread = new Thread(this, "Pty I/O");
+            mThread.setDaemon(true);
+            mThread.start();
+        }
+        return token;
+    }
+
+    /**
+     * Stop watching a pty.  Must be called before the pty is closed.
+     */
+    public void unregister(int token) {
+        Registration reg;
+        synchronized (this) {
+            reg = mRegistrations.get(token);
+            if (reg == null) {
+                return;
+            }
+            mRegistrations.remove(token);
+        }
+        if (mForegroundToken == token) {
+            mForegroundToken = 0;
+        }
+        Exec.multiplexerRemove(mMuxFd, reg.fd);
+        reg.close();
+    }
+
+    /**
+     * Hand a registration over to another client, as when a session is
+     * replaced by one running the same shell.  A chunk the old client
+     * hasn't consumed yet is still its to pass on; the pty isn't watched
+     * again until somebody calls {@link #rearm}.
+     */
+    public void setClient(int token, Client client) {
+        Registration reg;
+        synchronized (this) {
+            reg = mRegistrations.get(token);
+        }
+        if (reg != null) {
+            // Waits for a chunk being handed to the old client
+            synchronized (reg) {
+                reg.client = client;
+            }
+        }
+    }
+
+    /**
+     * Resume watching a pty after the client has consumed its last chunk.
+     */
+    public void rearm(int token) {
+        Registration reg;
+        synchronized (this) {
+            reg = mRegistrations.get(token);
+        }
+        if (reg != null) {
+            synchronized (reg) {
+                reg.busy = false;
+            }
+            Exec.multiplexerRearm(mMuxFd, reg.fd, token);
+        }
+    }
+
+    /**
+     * Mark a registration as belonging to the session on screen, or clear
+     * the mark.
+     */
+    public void setForeground(int token, boolean foreground) {
+        if (foreground) {
+            mForegroundToken = token;
+        } else if (mForegroundToken == token) {
+            mForegroundToken = 0;
+        }
+    }
+
+    public void run() {
+        int[] ready = new int[MAX_EVENTS];
+        while (true) {
+            int count = Exec.multiplexerWait(mMuxFd, ready, -1);
+            if (count < 0) {
+                Log.e(TAG, "multiplexerWait failed, pty I/O stopped");
+                return;
+            }
+
+            // Service the visible session ahead of everybody else
+            int foreground = mForegroundToken;
+            for (int i = 0; i < count; ++i) {
+                if (ready[i] == foreground) {
+                    service(foreground, true);
+                    ready[i] = 0;
+                    break;
+                }
+            }
+            for (int i = 0; i < count; ++i) {
+                if (ready[i] != 0) {
+                    service(ready[i], false);
+                }
+            }
+        }
+    }
+
+    private void service(int token, boolean foreground) {
+        Registration reg;
+        synchronized (this) {
+            reg = mRegistrations.get(token);
+        }
+        if (reg == null) {
+            // Unregistered while the event was pending
+            return;
+        }
+
+        int read;
+        synchronized (reg) {
+            if (reg.closed) {
+                return;
+            }
+            try {
+                read = reg.read();
+            } catch (IOException e) {
+                // EIO once the last process holding the slave side has exited
+                read = -1;
+            }
+            if (read > 0) {
+                reg.busy = true;
+                try {
+                    reg.client.onPtyInput(reg.buffer, reg.offset, read, foreground);
+                    return;
+                } catch (RuntimeException e) {
+                    // Don't let one session take pty I/O down for all of them
+                    Log.e(TAG, "Pty client failed, dropping its pty", e);
+                }
+            }
+        }
+
+        unregister(token);
+        try {
+            reg.client.onPtyHangup();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Pty client failed on hangup", e);
+        }
+    }
+}
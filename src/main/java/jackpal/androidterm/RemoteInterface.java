@@ -16,6 +16,8 @@
 
 package jackpal.androidterm;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.UUID;
 
 import android.app.Activity;
@@ -27,8 +29,7 @@ import android.os.Bundle;
 import android.os.IBinder;
 import android.preference.PreferenceManager;
 import android.util.Log;
-
-import jackpal.androidterm.emulatorview.TermSession;
+import android.widget.Toast;
 
 import jackpal.androidterm.util.SessionList;
 import jackpal.androidterm.util.TermSettings;
@@ -42,6 +43,12 @@ public class RemoteInterface extends Activity {
 
     private static final String EXTRA_WINDOW_HANDLE = "jackpal.androidterm.window_handle";
     private static final String EXTRA_INITIAL_COMMAND = "jackpal.androidterm.iInitialCommand";
+    // Boolean: start or stop logging the window's output
+    private static final String EXTRA_LOG_OUTPUT = "jackpal.androidterm.log_output";
+    // Optional path of the log file; a new file in the log directory if absent
+    private static final String EXTRA_LOG_FILE = "jackpal.androidterm.log_file";
+    // Boolean: run a new window's shell without showing it or building its emulator
+    private static final String EXTRA_HEADLESS = "jackpal.androidterm.headless";
 
     static final String PRIVEXTRA_TARGET_WINDOW = "jackpal.androidterm.private.target_window";
 
@@ -87,29 +94,44 @@ public class RemoteInterface extends Activity {
             /* Someone with the appropriate permissions has asked us to
                run a script */
             String handle = myIntent.getStringExtra(EXTRA_WINDOW_HANDLE);
+            boolean headless = myIntent.getBooleanExtra(EXTRA_HEADLESS, false);
             if (handle != null) {
                 // Target the request at an existing window if open
-                handle = appendToWindow(handle, myIntent.getStringExtra(EXTRA_INITIAL_COMMAND));
+                handle = appendToWindow(handle, myIntent.getStringExtra(EXTRA_INITIAL_COMMAND),
+                        headless);
             } else {
                 // Open a new window
-                handle = openNewWindow(myIntent.getStringExtra(EXTRA_INITIAL_COMMAND));
+                handle = openNewWindow(myIntent.getStringExtra(EXTRA_INITIAL_COMMAND), headless);
+            }
+            if (myIntent.hasExtra(EXTRA_LOG_OUTPUT)) {
+                setLogging(handle, myIntent.getBooleanExtra(EXTRA_LOG_OUTPUT, false),
+                        myIntent.getStringExtra(EXTRA_LOG_FILE));
             }
             Intent result = new Intent();
             result.putExtra(EXTRA_WINDOW_HANDLE, handle);
             setResult(RESULT_OK, result);
         } else {
             // Intent sender may not have permissions, ignore any extras
-            openNewWindow(null);
+            openNewWindow(null, false);
         }
 
         unbindService(mTSConnection);
         finish();
     }
 
-    private String openNewWindow(String iInitialCommand) {
-        TermService service = mTermService;
+    private String openNewWindow(String iInitialCommand, boolean headless) {
+        return openNewWindow(mTermService, mSettings, iInitialCommand, headless);
+    }
 
-        String initialCommand = mSettings.getInitialCommand();
+    /**
+     * Start a new window running iInitialCommand after the user's initial
+     * command, as RUN_SCRIPT does.  Also used by ControlServer.
+     *
+     * @return the new window's handle.
+     */
+    static String openNewWindow(TermService service, TermSettings settings,
+            String iInitialCommand, boolean headless) {
+        String initialCommand = settings.getInitialCommand();
         if (iInitialCommand != null) {
             if (initialCommand != null) {
                 initialCommand += "\r" + iInitialCommand;
@@ -118,53 +140,115 @@ public class RemoteInterface extends Activity {
             }
         }
 
-        TermSession session = Term.createTermSession(this, mSettings, initialCommand, "");
-        session.setFinishCallback(service);
-        service.getSessions().add(session);
-
         String handle = UUID.randomUUID().toString();
-        ((ShellTermSession) session).setHandle(handle);
-
-        Intent intent = new Intent(PRIVACT_OPEN_NEW_WINDOW);
-        intent.addCategory(Intent.CATEGORY_DEFAULT);
-        intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-        startActivity(intent);
+        service.getSessionFactory().createSession(settings, initialCommand, "", handle,
+                new WindowOpener(service, headless));
 
         return handle;
     }
 
-    private String appendToWindow(String handle, String iInitialCommand) {
+    /**
+     * Adds a session started for openNewWindow() and shows its window, or
+     * leaves it running headless.  We have usually finished by then, so this
+     * works through the service.
+     */
+    private static class WindowOpener implements SessionFactory.Callback {
+        private final TermService mService;
+        private final boolean mHeadless;
+
+        WindowOpener(TermService service, boolean headless) {
+            mService = service;
+            mHeadless = headless;
+        }
+
+        public void onSessionReady(ShellTermSession session) {
+            // XXX We should really be able to fetch this from within TermSession
+            session.setProcessExitMessage(mService.getString(R.string.process_exit_message));
+            session.setFinishCallback(mService);
+            if (mHeadless) {
+                session.startHeadless();
+            }
+            mService.getSessions().add(session);
+            if (mHeadless) {
+                return;
+            }
+
+            Intent intent = new Intent(PRIVACT_OPEN_NEW_WINDOW);
+            intent.addCategory(Intent.CATEGORY_DEFAULT);
+            intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+            mService.startActivity(intent);
+        }
+
+        public void onSessionFailed() {
+            // The activity that asked has usually finished, so tell the user from here
+            Toast.makeText(mService, R.string.session_failed, Toast.LENGTH_LONG).show();
+        }
+    }
+
+    private String appendToWindow(String handle, String iInitialCommand, boolean headless) {
         TermService service = mTermService;
 
         // Find the target window
         SessionList sessions = service.getSessions();
-        ShellTermSession target = null;
-        int index;
-        for (index = 0; index < sessions.size(); ++index) {
-            ShellTermSession session = (ShellTermSession) sessions.get(index);
-            String h = session.getHandle();
-            if (h != null && h.equals(handle)) {
-                target = session;
-                break;
-            }
-        }
+        ShellTermSession target = (ShellTermSession) sessions.findByHandle(handle);
 
         if (target == null) {
+            SessionFactory.Request pending = service.getSessionFactory().findPending(handle);
+            if (pending != null) {
+                // Still starting; type the command once it's up
+                if (iInitialCommand != null) {
+                    pending.appendCommand(iInitialCommand);
+                }
+                return handle;
+            }
+
             // Target window not found, open a new one
-            return openNewWindow(iInitialCommand);
+            return openNewWindow(iInitialCommand, headless);
         }
 
         if (iInitialCommand != null) {
             target.write(iInitialCommand);
             target.write('\r');
         }
+        if (target.isHeadless() && !target.isHibernated()) {
+            // Leave it running in the background
+            return handle;
+        }
 
         Intent intent = new Intent(PRIVACT_SWITCH_WINDOW);
         intent.addCategory(Intent.CATEGORY_DEFAULT);
         intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-        intent.putExtra(PRIVEXTRA_TARGET_WINDOW, index);
+        intent.putExtra(PRIVEXTRA_TARGET_WINDOW, sessions.indexOf(target));
         startActivity(intent);
 
         return handle;
     }
+
+    private void setLogging(String handle, boolean enabled, String path) {
+        File file = (path != null) ? new File(path) : null;
+
+        ShellTermSession session =
+                (ShellTermSession) mTermService.getSessions().findByHandle(handle);
+        if (session != null) {
+            setLogging(session, enabled, file);
+            return;
+        }
+
+        SessionFactory.Request pending = mTermService.getSessionFactory().findPending(handle);
+        if (pending != null) {
+            pending.setLogging(enabled, file);
+        }
+    }
+
+    static void setLogging(ShellTermSession session, boolean enabled, File file) {
+        if (!enabled) {
+            session.stopLog();
+            return;
+        }
+        try {
+            session.startLog(file);
+        } catch (IOException e) {
+            Log.e(TermDebug.LOG_TAG, "Couldn't start logging to " + file, e);
+        }
+    }
 }
@@ -0,0 +1,117 @@
+package jackpal.androidterm;
+
+import android.os.Handler;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import jackpal.androidterm.emulatorview.TermSession;
+
+/**
+ * Steps through the lines of a session's output that match a query.
+ * <p>
+ * A shell session is searched in its {@link ShellTermSession#getHistory()
+ * history}: the long scrollback if it keeps one, otherwise its last few
+ * thousand lines.  The store's index keeps searches fast however long the
+ * history is.  Only other sessions have their transcript copied into a
+ * store of their own.  Searches run on a background thread shared by all
+ * windows, one at a time, and report to the main thread.  Matches are
+ * reported by line; the emulator's view isn't scrolled to them.
+ */
+final class ScrollbackSearch {
+    /**
+     * Told the result of a search, on the main thread.
+     */
+    interface Listener {
+        /**
+         * @param line the number of the matching line, or -1 if there are no
+         *             more matches in that direction.
+         * @param text the matching line, or null.
+         */
+        void onFound(long line, String text);
+    }
+
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor(
+        new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Scrollback search");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+    private final ScrollbackStore mStore;
+    private final boolean mOwnStore;
+    private final ScrollbackStore.Query mQuery;
+    private final Handler mHandler = new Handler();
+    // The line last found; searches continue from here
+    private long mLine = -1;
+    private boolean mBusy;
+
+    /**
+     * Must be constructed on the main thread.
+     *
+     * @throws java.util.regex.PatternSyntaxException if regex is set and
+     *         text isn't a valid regular expression.
+     */
+    ScrollbackSearch(TermSession session, String text, boolean regex, boolean ignoreCase) {
+        mQuery = new ScrollbackStore.Query(text, regex, ignoreCase);
+        ScrollbackStore store = null;
+        if (session instanceof ShellTermSession) {
+            store = ((ShellTermSession) session).getHistory();
+        }
+        mOwnStore = store == null;
+        if (mOwnStore) {
+            store = new ScrollbackStore();
+            byte[] transcript = session.getTranscriptText().getBytes(Charset.forName("UTF-8"));
+            store.write(transcript, 0, transcript.length);
+            store.write(new byte[] { '\n' }, 0, 1);
+        }
+        mStore = store;
+    }
+
+    /**
+     * Look for the next match, older than the last one found unless forward
+     * is set.  The first search starts from the newest line.  Does nothing
+     * if a search is already running.
+     */
+    void find(final boolean forward, final Listener listener) {
+        if (mBusy) {
+            return;
+        }
+        mBusy = true;
+        long from;
+        if (mLine < 0) {
+            from = forward ? 0 : Long.MAX_VALUE;
+        } else {
+            from = forward ? mLine + 1 : mLine - 1;
+        }
+        final long start = from;
+        sExecutor.execute(new Runnable() {
+            public void run() {
+                final long line = mStore.find(mQuery, start, forward);
+                final String text = line >= 0 ? mStore.getLine(line) : null;
+                mHandler.post(new Runnable() {
+                    public void run() {
+                        mBusy = false;
+                        if (line >= 0) {
+                            mLine = line;
+                        }
+                        listener.onFound(line, text);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Free the copy of the transcript, if one was made.
+     */
+    void close() {
+        if (mOwnStore) {
+            mStore.close();
+        }
+    }
+}
@@ -0,0 +1,811 @@
+package jackpal.androidterm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A long, compact history of the lines a session has printed.
+ * <p>
+ * Output is stripped of escape sequences and split into lines, which are
+ * packed into blocks of about {@link #BLOCK_SIZE} bytes.  A full block is
+ * deflated into a direct ByteBuffer, so the text itself lives outside the
+ * Java heap; only a small index per block and the last few blocks read
+ * (decompressed, for scrolling through nearby lines) stay on the heap.
+ * Full blocks are compressed on a background thread shared by all stores,
+ * not on the thread writing output, which for sessions is the pty I/O
+ * thread every session is read on; until then they are read like the
+ * block being filled.
+ * Once more than the store's line limit ({@link #MAX_LINES} by default)
+ * are held, the oldest blocks are dropped.
+ * <p>
+ * Each full block also gets a small index of the three-byte sequences in it
+ * (case folded, hashed into {@link #INDEX_BITS} bits), which lets
+ * {@link #find} skip decompressing blocks that can't hold a match.  The
+ * index is kept with its block, so it is dropped along with the text.
+ * <p>
+ * Lines are numbered from the first line ever written, so a line keeps its
+ * number when older blocks are dropped.  The store is thread safe;
+ * output is normally added on the pty I/O thread and read on the main
+ * thread.
+ * <p>
+ * This is a side store, kept next to the emulator's transcript rather than
+ * replacing it: scrolling and copying in the view still go through the
+ * transcript, while search, export and checkpoints read from here.
+ */
+final class ScrollbackStore {
+    static final int BLOCK_SIZE = 64 * 1024;
+    static final int MAX_LINES = 500 * 1000;
+    private static final int MAX_LINE_LENGTH = 4096;
+    private static final int CACHED_BLOCKS = 4;
+    // 2 KB of index per block
+    static final int INDEX_BITS = 1 << 14;
+    private static final int INDEX_SHIFT = 32 - 14;
+
+    private static final int STATE_TEXT = 0;
+    private static final int STATE_ESC = 1;
+    private static final int STATE_CSI = 2;
+    private static final int STATE_OSC = 3;
+    private static final int STATE_OSC_ESC = 4;
+    private static final int STATE_SKIP_ONE = 5;
+
+    /**
+     * A full block: its lines, deflated, and their index.  Never changed once
+     * made.
+     */
+    static final class Block {
+        final long firstLine;
+        final int lineCount;
+        final int rawLength;
+        final ByteBuffer data;
+        final long[] index;
+
+        Block(long firstLine, int lineCount, int rawLength, ByteBuffer data, long[] index) {
+            this.firstLine = firstLine;
+            this.lineCount = lineCount;
+            this.rawLength = rawLength;
+            this.data = data;
+            this.index = index;
+        }
+    }
+
+    /**
+     * A compiled search for {@link #find}.
+     */
+    static final class Query {
+        final Pattern pattern;
+        // Index bits a block must have to hold a match
+        final int[] trigrams;
+
+        /**
+         * @param text the text to look for, or a regular expression.
+         * @throws java.util.regex.PatternSyntaxException if regex is set and
+         *         text isn't a valid regular expression.
+         */
+        Query(String text, boolean regex, boolean ignoreCase) {
+            int flags = regex ? 0 : Pattern.LITERAL;
+            if (ignoreCase) {
+                flags |= Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE;
+            }
+            pattern = Pattern.compile(text, flags);
+            String literal = regex ? requiredLiteral(text) : text;
+            trigrams = literal != null ? trigrams(literal, ignoreCase) : new int[0];
+        }
+
+        boolean mayMatch(long[] index) {
+            for (int bit : trigrams) {
+                if ((index[bit >>> 6] & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /* Hashes of the three-byte sequences of literal.  Sequences with
+           non-ASCII bytes are left out of case-insensitive searches, since
+           the index only folds ASCII */
+        private static int[] trigrams(String literal, boolean ignoreCase) {
+            byte[] bytes;
+            try {
+                bytes = literal.getBytes("UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                return new int[0];
+            }
+            int[] result = new int[Math.max(bytes.length - 2, 0)];
+            int count = 0;
+            for (int i = 2; i < bytes.length; ++i) {
+                int a = fold(bytes[i - 2]);
+                int b = fold(bytes[i - 1]);
+                int c = fold(bytes[i]);
+                if (ignoreCase && (a | b | c) >= 0x80) {
+                    continue;
+                }
+                result[count++] = hash(a, b, c);
+            }
+            return Arrays.copyOf(result, count);
+        }
+
+        // Escapes that take no argument, such as \d or \n
+        private static final String SIMPLE_ESCAPES = "dDsSwWbBAzZGhHvVRXtnrfae";
+
+        /* The longest run of plain characters every match of regex must
+           contain, or null if there's none worth looking for.  Anything
+           inside a group is skipped, since the group may be optional.
+           Escapes other than escaped punctuation and the argumentless
+           ones in SIMPLE_ESCAPES end a run; ones that take arguments
+           (\x41, \cX, \Q...\E and so on) give up, as their arguments
+           aren't plain text */
+        private static String requiredLiteral(String regex) {
+            String best = "";
+            StringBuilder run = new StringBuilder();
+            int depth = 0;
+            int length = regex.length();
+            for (int i = 0; i < length; ++i) {
+                char c = regex.charAt(i);
+                if (c == '\\' && i + 1 < length) {
+                    char next = regex.charAt(++i);
+                    if (depth == 0 && !Character.isLetterOrDigit(next)) {
+                        run.append(next);
+                        continue;
+                    }
+                    if (Character.isLetterOrDigit(next) && SIMPLE_ESCAPES.indexOf(next) < 0) {
+                        return null;
+                    }
+                } else if (c == '|') {
+                    // Any alternative might match, so nothing is required
+                    return null;
+                } else if (c == '[') {
+                    i = skipClass(regex, i);
+                } else if (c == '(') {
+                    depth++;
+                } else if (c == ')') {
+                    depth--;
+                } else if (c == '*' || c == '?' || c == '{') {
+                    // The character before was optional
+                    if (run.length() > 0) {
+                        run.setLength(run.length() - 1);
+                    }
+                    if (c == '{') {
+                        i = regex.indexOf('}', i);
+                        if (i < 0) {
+                            i = length;
+                        }
+                    }
+                } else if (depth == 0 && c != '.' && c != '^' && c != '$' && c != '+') {
+                    run.append(c);
+                    continue;
+                }
+                if (run.length() > best.length()) {
+                    best = run.toString();
+                }
+                run.setLength(0);
+            }
+            if (run.length() > best.length()) {
+                best = run.toString();
+            }
+            return best.length() >= 3 ? best : null;
+        }
+
+        /* The index of the ']' closing the character class opened at start */
+        private static int skipClass(String regex, int start) {
+            int i = start + 1;
+            if (i < regex.length() && regex.charAt(i) == '^') {
+                i++;
+            }
+            if (i < regex.length() && regex.charAt(i) == ']') {
+                i++;
+            }
+            for (; i < regex.length(); ++i) {
+                char c = regex.charAt(i);
+                if (c == '\\') {
+                    i++;
+                } else if (c == '[') {
+                    // A nested class, as in [a-z&&[^x]]
+                    i = skipClass(regex, i);
+                } else if (c == ']') {
+                    return i;
+                }
+            }
+            return regex.length();
+        }
+    }
+
+    /* A full block waiting to be compressed */
+    private static final class Sealed {
+        final byte[] raw;
+        final int lineCount;
+
+        // Split on first use; guarded by the store's lock
+        private Lines mLines;
+
+        Sealed(byte[] raw, int lineCount) {
+            this.raw = raw;
+            this.lineCount = lineCount;
+        }
+
+        Lines getLines() {
+            if (mLines == null) {
+                mLines = split(raw, lineCount);
+            }
+            return mLines;
+        }
+    }
+
+    /* The block being filled, which getLine() reads in place */
+    private static final class OpenBlock extends ByteArrayOutputStream {
+        OpenBlock(int size) {
+            super(size);
+        }
+
+        byte[] buffer() {
+            return buf;
+        }
+    }
+
+    /* Compresses full blocks for all stores, in the order they were filled */
+    private static final ExecutorService sCompressor =
+        Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Scrollback compressor");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    // Only used on the compressor thread
+    private static final Deflater sDeflater = new Deflater(Deflater.BEST_SPEED);
+    private static final byte[] sDeflateBuffer = new byte[8192];
+
+    /* A decompressed block: the text, and where each line starts (with one
+       extra entry for the end of the last line) */
+    private static final class Lines {
+        final byte[] text;
+        final int[] starts;
+
+        Lines(byte[] text, int[] starts) {
+            this.text = text;
+            this.starts = starts;
+        }
+    }
+
+    private final int mMaxLines;
+    private final ArrayList<Block> mBlocks = new ArrayList<Block>();
+    private long mFirstLine;
+    // Lines in mBlocks
+    private long mStoredLines;
+    private long mStoredBytes;
+
+    // Full blocks not yet compressed, oldest first
+    private final ArrayDeque<Sealed> mSealed = new ArrayDeque<Sealed>();
+    private int mSealedLines;
+    private long mSealedBytes;
+    // Lines of the block being filled, each ending in '\n'
+    private final OpenBlock mOpenBlock = new OpenBlock(BLOCK_SIZE);
+    private int mOpenLines;
+    // Where each line of the open block starts, and where the last one ends
+    private int[] mOpenStarts = new int[256];
+    private boolean mClosed;
+    // The line being written
+    private final ByteArrayOutputStream mLine = new ByteArrayOutputStream(256);
+    private boolean mCarriageReturn;
+    private int mState = STATE_TEXT;
+
+    private final LinkedHashMap<Block, Lines> mCache =
+        new LinkedHashMap<Block, Lines>(CACHED_BLOCKS + 1, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Block, Lines> eldest) {
+                return size() > CACHED_BLOCKS;
+            }
+        };
+
+    ScrollbackStore() {
+        this(MAX_LINES);
+    }
+
+    /**
+     * @param maxLines how many lines to keep, rounded up to whole blocks.
+     */
+    ScrollbackStore(int maxLines) {
+        mMaxLines = maxLines;
+    }
+
+    int getMaxLines() {
+        return mMaxLines;
+    }
+
+    /**
+     * Add raw pty output.
+     */
+    synchronized void write(byte[] data, int offset, int count) {
+        int end = offset + count;
+        for (int i = offset; i < end; ++i) {
+            int b = data[i] & 0xff;
+            switch (mState) {
+            case STATE_TEXT:
+                writeText(b);
+                break;
+            case STATE_ESC:
+                if (b == '[') {
+                    mState = STATE_CSI;
+                } else if (b == ']') {
+                    mState = STATE_OSC;
+                } else if (b == '(' || b == ')' || b == '*' || b == '+' || b == '#' || b == '%') {
+                    mState = STATE_SKIP_ONE;
+                } else {
+                    mState = STATE_TEXT;
+                }
+                break;
+            case STATE_CSI:
+                if (b >= 0x40 && b <= 0x7e) {
+                    mState = STATE_TEXT;
+                }
+                break;
+            case STATE_OSC:
+                if (b == 0x07) {
+                    mState = STATE_TEXT;
+                } else if (b == 0x1b) {
+                    mState = STATE_OSC_ESC;
+                }
+                break;
+            default:
+                // The byte after ESC in ST, or a charset designator
+                mState = STATE_TEXT;
+                break;
+            }
+        }
+    }
+
+    private void writeText(int b) {
+        if (b == '\n') {
+            endLine();
+            return;
+        }
+        if (b == '\r') {
+            mCarriageReturn = true;
+            return;
+        }
+        if (b == 0x1b) {
+            mState = STATE_ESC;
+            return;
+        }
+        if (b == '\b') {
+            int size = mLine.size();
+            if (size > 0) {
+                byte[] line = mLine.toByteArray();
+                mLine.reset();
+                mLine.write(line, 0, size - 1);
+            }
+            return;
+        }
+        if (b < 0x20 && b != '\t') {
+            return;
+        }
+        if (mCarriageReturn) {
+            // Overwriting the line, as progress meters do
+            mCarriageReturn = false;
+            mLine.reset();
+        }
+        if (mLine.size() < MAX_LINE_LENGTH) {
+            mLine.write(b);
+        }
+    }
+
+    private void endLine() {
+        mCarriageReturn = false;
+        mLine.write('\n');
+        try {
+            mLine.writeTo(mOpenBlock);
+        } catch (IOException e) {
+            // Never happens
+        }
+        mLine.reset();
+        mOpenLines++;
+        if (mOpenLines == mOpenStarts.length) {
+            mOpenStarts = Arrays.copyOf(mOpenStarts, mOpenStarts.length * 2);
+        }
+        mOpenStarts[mOpenLines] = mOpenBlock.size();
+        if (mOpenBlock.size() >= BLOCK_SIZE) {
+            closeBlock();
+        }
+    }
+
+    private void closeBlock() {
+        final Sealed sealed = new Sealed(mOpenBlock.toByteArray(), mOpenLines);
+        mSealed.addLast(sealed);
+        mSealedLines += sealed.lineCount;
+        mSealedBytes += sealed.raw.length;
+        mOpenBlock.reset();
+        mOpenLines = 0;
+
+        sCompressor.execute(new Runnable() {
+            public void run() {
+                ByteBuffer data = deflate(sealed.raw);
+                long[] index = buildIndex(sealed.raw);
+                addCompressed(sealed, data, index);
+            }
+        });
+    }
+
+    /* Compressor thread */
+    private static ByteBuffer deflate(byte[] raw) {
+        Deflater deflater = sDeflater;
+        deflater.reset();
+        deflater.setInput(raw);
+        deflater.finish();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(raw.length / 4);
+        while (!deflater.finished()) {
+            int n = deflater.deflate(sDeflateBuffer);
+            compressed.write(sDeflateBuffer, 0, n);
+        }
+        ByteBuffer data = ByteBuffer.allocateDirect(compressed.size());
+        data.put(compressed.toByteArray());
+        return data;
+    }
+
+    /* Put a sealed block's compressed form in its place.  Blocks are
+       compressed in the order they were sealed, so it is the oldest. */
+    private synchronized void addCompressed(Sealed sealed, ByteBuffer data, long[] index) {
+        if (mClosed || mSealed.peekFirst() != sealed) {
+            return;
+        }
+        mSealed.removeFirst();
+        mSealedLines -= sealed.lineCount;
+        mSealedBytes -= sealed.raw.length;
+
+        mBlocks.add(new Block(mFirstLine + mStoredLines, sealed.lineCount, sealed.raw.length,
+                data, index));
+        mStoredLines += sealed.lineCount;
+        mStoredBytes += sealed.raw.length;
+
+        trim();
+    }
+
+    /* The complete lines not yet in a compressed block, and how many */
+    private byte[] getOpenBytes() {
+        if (mSealed.isEmpty()) {
+            return mOpenBlock.toByteArray();
+        }
+        ByteArrayOutputStream open = new ByteArrayOutputStream(
+                (int) mSealedBytes + mOpenBlock.size());
+        for (Sealed sealed : mSealed) {
+            open.write(sealed.raw, 0, sealed.raw.length);
+        }
+        try {
+            mOpenBlock.writeTo(open);
+        } catch (IOException e) {
+            // Never happens
+        }
+        return open.toByteArray();
+    }
+
+    private int getOpenLines() {
+        return mSealedLines + mOpenLines;
+    }
+
+    private void trim() {
+        while (mBlocks.size() > 1 && mStoredLines > mMaxLines) {
+            Block oldest = mBlocks.remove(0);
+            mCache.remove(oldest);
+            mFirstLine += oldest.lineCount;
+            mStoredLines -= oldest.lineCount;
+            mStoredBytes -= oldest.rawLength;
+        }
+    }
+
+    /**
+     * Add a full block saved from another store, as if its lines had just
+     * been written.  Lines already being written stay after it.  The block's
+     * line numbers are kept if this store is still empty.
+     */
+    synchronized void addBlock(Block block) {
+        if (mBlocks.isEmpty() && getOpenLines() == 0) {
+            mFirstLine = block.firstLine;
+        } else if (block.firstLine != mFirstLine + mStoredLines) {
+            block = new Block(mFirstLine + mStoredLines, block.lineCount, block.rawLength,
+                    block.data, block.index);
+        }
+        mBlocks.add(block);
+        mStoredLines += block.lineCount;
+        mStoredBytes += block.rawLength;
+        trim();
+    }
+
+    /**
+     * The compressed blocks starting at or after line fromLine, oldest
+     * first.
+     */
+    synchronized List<Block> getBlocks(long fromLine) {
+        int first = 0;
+        while (first < mBlocks.size() && mBlocks.get(first).firstLine < fromLine) {
+            first++;
+        }
+        return new ArrayList<Block>(mBlocks.subList(first, mBlocks.size()));
+    }
+
+    /**
+     * The text not yet in a compressed block: complete lines and the line
+     * being written.
+     */
+    synchronized String getOpenText() {
+        try {
+            return new String(getOpenBytes(), "UTF-8") + mLine.toString("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            // Never happens
+            return "";
+        }
+    }
+
+    /**
+     * The text of a block.
+     */
+    static String getText(Block block) {
+        byte[] text = inflateText(block);
+        return decode(text, 0, text.length);
+    }
+
+    /** Number of the oldest line still held */
+    synchronized long getFirstLine() {
+        return mFirstLine;
+    }
+
+    /** Number of the line after the last complete line */
+    synchronized long getEndLine() {
+        return mFirstLine + mStoredLines + getOpenLines();
+    }
+
+    /** Bytes of text held, uncompressed */
+    synchronized long getTextSize() {
+        return mStoredBytes + mSealedBytes + mOpenBlock.size() + mLine.size();
+    }
+
+    /**
+     * Get a complete line, without its line ending.
+     *
+     * @return the line, or null if it has been dropped or not finished yet.
+     */
+    synchronized String getLine(long line) {
+        if (line < mFirstLine || line >= getEndLine()) {
+            return null;
+        }
+        Lines lines;
+        long first;
+        int found = findBlock(mBlocks, line);
+        if (found >= 0) {
+            Block block = mBlocks.get(found);
+            lines = inflate(block);
+            first = block.firstLine;
+        } else {
+            // Blocks waiting for the compressor are split once, the open one not at all
+            lines = null;
+            first = mFirstLine + mStoredLines;
+            for (Sealed sealed : mSealed) {
+                if (line < first + sealed.lineCount) {
+                    lines = sealed.getLines();
+                    break;
+                }
+                first += sealed.lineCount;
+            }
+            if (lines == null) {
+                lines = new Lines(mOpenBlock.buffer(), mOpenStarts);
+            }
+        }
+        int index = (int) (line - first);
+        return decode(lines.text, lines.starts[index],
+                lines.starts[index + 1] - lines.starts[index] - 1);
+    }
+
+    /**
+     * Write all lines held, including the one being written, to out.
+     * Blocks are decompressed one at a time, so this needs little memory
+     * however long the history is.  The store is only locked while taking
+     * its list of blocks, so output keeps being added while a slow writer
+     * catches up; lines added meanwhile aren't written.
+     */
+    void writeTo(Writer out) throws IOException {
+        Block[] blocks;
+        String tail;
+        synchronized (this) {
+            blocks = mBlocks.toArray(new Block[mBlocks.size()]);
+            tail = new String(getOpenBytes(), "UTF-8") + mLine.toString("UTF-8");
+        }
+        for (Block block : blocks) {
+            byte[] text = inflateText(block);
+            out.write(decode(text, 0, text.length));
+        }
+        out.write(tail);
+    }
+
+    /**
+     * Free the off-heap blocks.  The store can't be used afterwards.
+     */
+    synchronized void close() {
+        mClosed = true;
+        mBlocks.clear();
+        mSealed.clear();
+        mCache.clear();
+        mStoredBytes = 0;
+        mSealedLines = 0;
+        mSealedBytes = 0;
+    }
+
+    /**
+     * Find the nearest line matching query, starting at line from and going
+     * towards newer lines if forward is set, older ones otherwise.  Blocks
+     * whose index rules out a match aren't decompressed.  Like
+     * {@link #writeTo}, this doesn't hold the store's lock while searching.
+     *
+     * @return the number of the matching line, or -1 if there is none.
+     */
+    long find(Query query, long from, boolean forward) {
+        List<Block> blocks;
+        Lines open;
+        long openFirst;
+        long first;
+        synchronized (this) {
+            blocks = Arrays.asList(mBlocks.toArray(new Block[mBlocks.size()]));
+            open = split(getOpenBytes(), getOpenLines());
+            openFirst = mFirstLine + mStoredLines;
+            first = mFirstLine;
+        }
+        long end = openFirst + open.starts.length - 1;
+        if (from < first) {
+            if (!forward) {
+                return -1;
+            }
+            from = first;
+        } else if (from >= end) {
+            if (forward) {
+                return -1;
+            }
+            from = end - 1;
+        }
+
+        Matcher matcher = query.pattern.matcher("");
+        int step = forward ? 1 : -1;
+        int i = findBlock(blocks, from);
+        if (i < 0) {
+            i = blocks.size();
+        }
+        for (; i >= 0 && i <= blocks.size(); i += step) {
+            Lines lines;
+            long base;
+            if (i == blocks.size()) {
+                lines = open;
+                base = openFirst;
+            } else {
+                Block block = blocks.get(i);
+                if (!query.mayMatch(block.index)) {
+                    continue;
+                }
+                synchronized (this) {
+                    lines = inflate(block);
+                }
+                base = block.firstLine;
+            }
+            int count = lines.starts.length - 1;
+            int index = (int) Math.max(Math.min(from - base, count - 1), 0);
+            for (; index >= 0 && index < count; index += step) {
+                int start = lines.starts[index];
+                matcher.reset(decode(lines.text, start, lines.starts[index + 1] - start - 1));
+                if (matcher.find()) {
+                    return base + index;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /* Binary search for the block holding line; -1 if it's still open */
+    private static int findBlock(List<Block> blocks, long line) {
+        int low = 0;
+        int high = blocks.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            Block block = blocks.get(mid);
+            if (line < block.firstLine) {
+                high = mid - 1;
+            } else if (line >= block.firstLine + block.lineCount) {
+                low = mid + 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private Lines inflate(Block block) {
+        Lines lines = mCache.get(block);
+        if (lines != null) {
+            return lines;
+        }
+        lines = split(inflateText(block), block.lineCount);
+        mCache.put(block, lines);
+        return lines;
+    }
+
+    /* A block's data is never changed once written, so this needs no lock */
+    private static byte[] inflateText(Block block) {
+        byte[] compressed = new byte[block.data.capacity()];
+        ByteBuffer data = block.data.duplicate();
+        data.clear();
+        data.get(compressed);
+
+        byte[] text = new byte[block.rawLength];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            inflater.inflate(text);
+        } catch (DataFormatException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            inflater.end();
+        }
+        return text;
+    }
+
+    /* Set the index bit of every three-byte sequence within a line */
+    private static long[] buildIndex(byte[] text) {
+        long[] index = new long[INDEX_BITS / 64];
+        int a = -1;
+        int b = -1;
+        for (byte x : text) {
+            int c = fold(x);
+            if (c == '\n') {
+                a = -1;
+                b = -1;
+                continue;
+            }
+            if (a >= 0) {
+                int bit = hash(a, b, c);
+                index[bit >>> 6] |= 1L << bit;
+            }
+            a = b;
+            b = c;
+        }
+        return index;
+    }
+
+    private static int fold(byte b) {
+        int c = b & 0xff;
+        return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+    }
+
+    private static int hash(int a, int b, int c) {
+        return (((a << 16) | (b << 8) | c) * 0x9e3779b1) >>> INDEX_SHIFT;
+    }
+
+    private static Lines split(byte[] text, int lineCount) {
+        int[] starts = new int[lineCount + 1];
+        int line = 1;
+        for (int i = 0; i < text.length && line <= lineCount; ++i) {
+            if (text[i] == '\n') {
+                starts[line++] = i + 1;
+            }
+        }
+        return new Lines(text, starts);
+    }
+
+    private static String decode(byte[] text, int offset, int length) {
+        try {
+            return new String(text, offset, length, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            // Never happens
+            return "";
+        }
+    }
+}
@@ -0,0 +1,512 @@
+package jackpal.androidterm;
+
+import android.os.Handler;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import jackpal.androidterm.emulatorview.TermSession;
+
+/**
+ * Saves each session's title, handle, launch command and output to disk, so
+ * that its windows can be shown again after the process is killed.
+ * <p>
+ * Output is saved from the session's {@link ShellTermSession#getHistory()
+ * history}, which unlike the emulator's transcript can be read off the main
+ * thread.  A session has two files.  <i>id</i>.blocks holds the full blocks
+ * of its history, appended as they fill up; they are already compressed and
+ * indexed, so saving one is a plain copy, and restoring one maps the file
+ * and copies it straight back.  The file is rewritten once the store has
+ * dropped half its line limit from its start.  <i>id</i>.state holds
+ * everything else: the text not yet in a full block and how much of the
+ * blocks file is valid.  It is replaced whole, by renaming, so a crash
+ * while saving leaves the previous checkpoint intact.
+ * <p>
+ * Only sessions that printed something, changed title or moved since the
+ * last checkpoint are saved again.  Files are written and read on a
+ * background thread, in the order the requests were made.  All methods must
+ * be called on the main thread.
+ */
+final class SessionCheckpoint {
+    private static final String TAG = "SessionCheckpoint";
+
+    private static final int MAGIC = 0x51434b50;
+    private static final int VERSION = 2;
+    private static final String STATE_SUFFIX = ".state";
+    private static final String BLOCKS_SUFFIX = ".blocks";
+    private static final int BLOCK_HEADER_SIZE = 8 + 4 + 4 + 4 + ScrollbackStore.INDEX_BITS / 8;
+
+    /**
+     * A session read back from disk.
+     */
+    static final class Restored {
+        final int id;
+        final int position;
+        final String title;
+        final String handle;
+        final String command;
+        final String pyPath;
+        final List<ScrollbackStore.Block> blocks;
+        // The text after the blocks
+        final String text;
+
+        Restored(int id, int position, String title, String handle, String command,
+                String pyPath, List<ScrollbackStore.Block> blocks, String text) {
+            this.id = id;
+            this.position = position;
+            this.title = title;
+            this.handle = handle;
+            this.command = command;
+            this.pyPath = pyPath;
+            this.blocks = blocks;
+            this.text = text;
+        }
+
+        /**
+         * Up to the last maxChars characters of the session's output,
+         * starting at a line.
+         */
+        String getRecentText(int maxChars) {
+            StringBuilder recent = new StringBuilder(text);
+            for (int i = blocks.size() - 1; i >= 0 && recent.length() < maxChars; --i) {
+                recent.insert(0, ScrollbackStore.getText(blocks.get(i)));
+            }
+            if (recent.length() <= maxChars) {
+                return recent.toString();
+            }
+            int start = recent.length() - maxChars;
+            int newline = recent.indexOf("\n", start);
+            return recent.substring(newline >= 0 ? newline + 1 : start);
+        }
+    }
+
+    interface RestoreCallback {
+        /**
+         * @param sessions the saved sessions, in window order.
+         */
+        void onRestored(List<Restored> sessions);
+    }
+
+    /* What's been saved of one session.  The first fields are only used on
+       the main thread, the rest only on the checkpoint thread. */
+    private static final class State {
+        final int id;
+        // Restored, but not given to a session yet
+        boolean pending;
+        long bytesRead = -1;
+        String title;
+        int position = -1;
+
+        // Whether this process has written the blocks file yet
+        boolean started;
+        long blocksLength;
+        long fileFirstLine;
+        // The first line not in the blocks file yet
+        long nextLine;
+
+        State(int id) {
+            this.id = id;
+        }
+    }
+
+    private final File mDir;
+    private final Handler mHandler = new Handler();
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "Checkpoint");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private final HashMap<Integer, State> mStates = new HashMap<Integer, State>();
+    private int mNextId = 1;
+
+    SessionCheckpoint(File dir) {
+        mDir = dir;
+        // Don't reuse the ids of checkpoints still waiting to be restored
+        for (int id : listIds(dir)) {
+            mNextId = Math.max(mNextId, id + 1);
+        }
+    }
+
+    /**
+     * True if there are sessions saved by an earlier process.
+     */
+    boolean hasSavedSessions() {
+        return !listIds(mDir).isEmpty();
+    }
+
+    /**
+     * Read back the sessions saved by an earlier process.  Their checkpoints
+     * are kept until the sessions the restored data is given to take them
+     * over (see {@link #adopt}).
+     */
+    void restore(final RestoreCallback callback) {
+        mExecutor.execute(new Runnable() {
+            public void run() {
+                final ArrayList<Restored> sessions = new ArrayList<Restored>();
+                for (int id : listIds(mDir)) {
+                    try {
+                        sessions.add(read(id));
+                    } catch (IOException e) {
+                        Log.e(TAG, "Couldn't read checkpoint " + id, e);
+                        deleteFiles(id);
+                    }
+                }
+                Collections.sort(sessions, new Comparator<Restored>() {
+                    public int compare(Restored a, Restored b) {
+                        return a.position - b.position;
+                    }
+                });
+                mHandler.post(new Runnable() {
+                    public void run() {
+                        for (Restored restored : sessions) {
+                            State state = new State(restored.id);
+                            state.pending = true;
+                            mStates.put(restored.id, state);
+                        }
+                        callback.onRestored(sessions);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Give session the checkpoint that restored was read from, so that
+     * saving it replaces that checkpoint.
+     */
+    void adopt(ShellTermSession session, Restored restored) {
+        session.setCheckpointId(restored.id);
+        mStates.put(restored.id, new State(restored.id));
+    }
+
+    /**
+     * Delete the checkpoint restored was read from, when it won't be shown
+     * after all.
+     */
+    void discard(Restored restored) {
+        remove(restored.id);
+    }
+
+    /**
+     * Save the sessions that changed since the last call, and delete the
+     * checkpoints of sessions that are gone.
+     */
+    void save(List<TermSession> sessions) {
+        HashSet<Integer> live = new HashSet<Integer>();
+        for (int i = 0; i < sessions.size(); ++i) {
+            if (!(sessions.get(i) instanceof ShellTermSession)) {
+                continue;
+            }
+            ShellTermSession session = (ShellTermSession) sessions.get(i);
+            int id = session.getCheckpointId();
+            if (id == 0) {
+                id = mNextId++;
+                session.setCheckpointId(id);
+            }
+            live.add(id);
+            State state = mStates.get(id);
+            if (state == null) {
+                state = new State(id);
+                mStates.put(id, state);
+            }
+            save(state, session, i);
+        }
+        for (State state : new ArrayList<State>(mStates.values())) {
+            if (!live.contains(state.id) && !state.pending) {
+                remove(state.id);
+            }
+        }
+    }
+
+    /**
+     * Delete a session's checkpoint, once it has been closed.
+     */
+    void remove(TermSession session) {
+        if (session instanceof ShellTermSession) {
+            int id = ((ShellTermSession) session).getCheckpointId();
+            if (id != 0) {
+                remove(id);
+            }
+        }
+    }
+
+    /**
+     * Delete every checkpoint and stop.  Used when the service is shut down
+     * on purpose, which leaves nothing to restore.
+     */
+    void shutdown() {
+        mStates.clear();
+        mExecutor.execute(new Runnable() {
+            public void run() {
+                for (int id : listIds(mDir)) {
+                    deleteFiles(id);
+                }
+            }
+        });
+        mExecutor.shutdown();
+    }
+
+    private void remove(final int id) {
+        mStates.remove(id);
+        mExecutor.execute(new Runnable() {
+            public void run() {
+                deleteFiles(id);
+            }
+        });
+    }
+
+    private void save(final State state, ShellTermSession session, final int position) {
+        final ScrollbackStore history = session.getHistory();
+        long bytesRead = session.getBytesRead();
+        String title = session.getTitle("");
+        if (history == null || (bytesRead == state.bytesRead && title.equals(state.title)
+                && position == state.position)) {
+            return;
+        }
+        state.bytesRead = bytesRead;
+        state.title = title;
+        state.position = position;
+
+        final String handle = session.getHandle();
+        final String command = session.getLaunchCommand();
+        final String pyPath = session.getPyPath();
+        final String savedTitle = title;
+        mExecutor.execute(new Runnable() {
+            public void run() {
+                try {
+                    writeBlocks(state, history);
+                    String text = history.getOpenText();
+                    writeState(state, position, savedTitle, handle, command, pyPath, text);
+                } catch (IOException e) {
+                    Log.e(TAG, "Couldn't save checkpoint " + state.id, e);
+                }
+            }
+        });
+    }
+
+    /* Append the blocks added since the last checkpoint, or rewrite the
+       file if it's new or mostly holds lines the store has dropped */
+    private void writeBlocks(State state, ScrollbackStore scrollback) throws IOException {
+        boolean rewrite = !state.started
+                || scrollback.getFirstLine() - state.fileFirstLine > scrollback.getMaxLines() / 2;
+        List<ScrollbackStore.Block> blocks = scrollback.getBlocks(rewrite ? 0 : state.nextLine);
+        if (!rewrite && !blocks.isEmpty() && blocks.get(0).firstLine != state.nextLine) {
+            // We fell behind the store's dropping of old blocks
+            rewrite = true;
+            blocks = scrollback.getBlocks(0);
+        }
+        if (!rewrite && blocks.isEmpty()) {
+            return;
+        }
+
+        mDir.mkdirs();
+        RandomAccessFile file = new RandomAccessFile(new File(mDir, state.id + BLOCKS_SUFFIX), "rw");
+        try {
+            FileChannel channel = file.getChannel();
+            // Drop anything a failed checkpoint left after the valid part
+            long length = rewrite ? 0 : state.blocksLength;
+            channel.truncate(length);
+            channel.position(length);
+            for (ScrollbackStore.Block block : blocks) {
+                writeBlock(channel, block);
+            }
+            state.blocksLength = channel.position();
+        } finally {
+            file.close();
+        }
+
+        if (rewrite) {
+            state.started = true;
+            state.fileFirstLine = blocks.isEmpty() ? scrollback.getFirstLine() : blocks.get(0).firstLine;
+            state.nextLine = state.fileFirstLine;
+        }
+        if (!blocks.isEmpty()) {
+            ScrollbackStore.Block last = blocks.get(blocks.size() - 1);
+            state.nextLine = last.firstLine + last.lineCount;
+        }
+    }
+
+    private static void writeBlock(FileChannel channel, ScrollbackStore.Block block)
+            throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+        header.putLong(block.firstLine);
+        header.putInt(block.lineCount);
+        header.putInt(block.rawLength);
+        header.putInt(block.data.capacity());
+        for (long bits : block.index) {
+            header.putLong(bits);
+        }
+        header.flip();
+        ByteBuffer data = block.data.duplicate();
+        data.clear();
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+        while (data.hasRemaining()) {
+            channel.write(data);
+        }
+    }
+
+    private void writeState(State state, int position, String title, String handle,
+            String command, String pyPath, String text) throws IOException {
+        mDir.mkdirs();
+        File temp = new File(mDir, state.id + STATE_SUFFIX + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new GZIPOutputStream(new FileOutputStream(temp))));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(position);
+            writeString(out, title);
+            writeString(out, handle != null ? handle : "");
+            writeString(out, command);
+            writeString(out, pyPath);
+            out.writeLong(state.blocksLength);
+            writeString(out, text);
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(new File(mDir, state.id + STATE_SUFFIX))) {
+            temp.delete();
+            throw new IOException("Couldn't rename " + temp);
+        }
+    }
+
+    private Restored read(int id) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new GZIPInputStream(new FileInputStream(new File(mDir, id + STATE_SUFFIX)))));
+        int position;
+        String title;
+        String handle;
+        String command;
+        String pyPath;
+        long blocksLength;
+        String text;
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a checkpoint");
+            }
+            position = in.readInt();
+            title = readString(in);
+            handle = readString(in);
+            command = readString(in);
+            pyPath = readString(in);
+            blocksLength = in.readLong();
+            text = readString(in);
+        } finally {
+            in.close();
+        }
+        List<ScrollbackStore.Block> blocks = blocksLength > 0
+                ? readBlocks(new File(mDir, id + BLOCKS_SUFFIX), blocksLength)
+                : new ArrayList<ScrollbackStore.Block>();
+        return new Restored(id, position, title, handle.length() > 0 ? handle : null, command,
+                pyPath, blocks, text);
+    }
+
+    /* Strings are written as length-prefixed UTF-8, since writeUTF() can't
+       take more than 64 KB */
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            throw new IOException("Bad string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    /* Copy the blocks out of a mapping of the file into direct buffers,
+       keeping the newest MAX_LINES lines' worth */
+    private static List<ScrollbackStore.Block> readBlocks(File file, long length)
+            throws IOException {
+        ArrayList<ScrollbackStore.Block> blocks = new ArrayList<ScrollbackStore.Block>();
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = in.getChannel();
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    Math.min(length, channel.size()));
+            long lines = 0;
+            while (map.remaining() >= BLOCK_HEADER_SIZE) {
+                long firstLine = map.getLong();
+                int lineCount = map.getInt();
+                int rawLength = map.getInt();
+                int compressedLength = map.getInt();
+                long[] index = new long[ScrollbackStore.INDEX_BITS / 64];
+                for (int i = 0; i < index.length; ++i) {
+                    index[i] = map.getLong();
+                }
+                if (compressedLength < 0 || compressedLength > map.remaining()) {
+                    break;
+                }
+                ByteBuffer data = ByteBuffer.allocateDirect(compressedLength);
+                ByteBuffer source = map.slice();
+                source.limit(compressedLength);
+                data.put(source);
+                map.position(map.position() + compressedLength);
+
+                blocks.add(new ScrollbackStore.Block(firstLine, lineCount, rawLength, data, index));
+                lines += lineCount;
+                while (blocks.size() > 1 && lines - blocks.get(0).lineCount >= ScrollbackStore.MAX_LINES) {
+                    lines -= blocks.remove(0).lineCount;
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return blocks;
+    }
+
+    private void deleteFiles(int id) {
+        new File(mDir, id + STATE_SUFFIX).delete();
+        new File(mDir, id + BLOCKS_SUFFIX).delete();
+    }
+
+    private static List<Integer> listIds(File dir) {
+        ArrayList<Integer> ids = new ArrayList<Integer>();
+        String[] names = dir.list();
+        if (names == null) {
+            return ids;
+        }
+        for (String name : names) {
+            if (!name.endsWith(STATE_SUFFIX)) {
+                continue;
+            }
+            try {
+                ids.add(Integer.parseInt(name.substring(0, name.length() - STATE_SUFFIX.length())));
+            } catch (NumberFormatException e) {
+                // Not ours
+            }
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,249 @@
+package jackpal.androidterm;
+
+import android.content.Context;
+import android.os.Handler;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import jackpal.androidterm.util.TermSettings;
+
+/**
+ * Builds shell sessions without blocking the main thread.
+ * <p>
+ * The expensive part of starting a session -- the environment, init.sh and
+ * the fork -- runs on a background thread.  The ShellTermSession itself is
+ * then constructed on the main thread (TermSession needs a Looper) and
+ * handed to the callbacks.  A pre-started session from the
+ * {@link SessionPool} is used when one fits, in which case the callback runs
+ * before createSession() returns.
+ * <p>
+ * Identical requests made while the first one is still being built are
+ * folded into it, and all of their callbacks receive the same session.
+ * <p>
+ * All methods must be called on the main thread, and callbacks are run
+ * there.
+ */
+class SessionFactory {
+    private static final String TAG = "SessionFactory";
+
+    interface Callback {
+        void onSessionReady(ShellTermSession session);
+
+        /**
+         * The shell couldn't be started.  Commands queued on the request
+         * and its logging settings are dropped with it.
+         */
+        void onSessionFailed();
+    }
+
+    /**
+     * A session that is still being started.
+     */
+    final class Request {
+        private final String mKey;
+        private final TermSettings mSettings;
+        private final String mPyPath;
+        private final String mHandle;
+        private String mInitialCommand;
+        private boolean mLogOutput;
+        private File mLogFile;
+        private final ArrayList<Callback> mCallbacks = new ArrayList<Callback>();
+
+        Request(String key, TermSettings settings, String initialCommand, String pyPath, String handle) {
+            mKey = key;
+            mSettings = settings;
+            mInitialCommand = initialCommand;
+            mPyPath = pyPath;
+            mHandle = handle;
+        }
+
+        /**
+         * Queue another command to be typed once the session is up.
+         */
+        void appendCommand(String command) {
+            if (mInitialCommand.length() > 0) {
+                mInitialCommand += "\r" + command;
+            } else {
+                mInitialCommand = command;
+            }
+        }
+
+        /**
+         * Start (or don't start) logging the session's output once it's up.
+         *
+         * @param file The log file, or null for the default.
+         */
+        void setLogging(boolean enabled, File file) {
+            mLogOutput = enabled;
+            mLogFile = file;
+        }
+
+        String getHandle() {
+            return mHandle;
+        }
+    }
+
+    private final Context mContext;
+    private final Handler mHandler = new Handler();
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "Session factory");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private final HashMap<String, Request> mPending = new HashMap<String, Request>();
+    private SessionPool mPool;
+    private boolean mShutdown;
+
+    SessionFactory(Context context) {
+        mContext = context;
+    }
+
+    void setPool(SessionPool pool) {
+        mPool = pool;
+    }
+
+    /**
+     * Start building a session.
+     *
+     * @param pyPath The script directory added to PYTHONPATH, or "".
+     * @param handle A handle to give the session, or null.
+     * @return the pending request, or null if the callback has already been
+     *     called with a pooled session.
+     */
+    Request createSession(TermSettings settings, String initialCommand, String pyPath,
+            String handle, Callback callback) {
+        if (initialCommand == null) {
+            initialCommand = "";
+        }
+        if (pyPath == null) {
+            pyPath = "";
+        }
+
+        String key = System.identityHashCode(settings) + "\0" + initialCommand + "\0"
+                + pyPath + "\0" + handle;
+        Request request = mPending.get(key);
+        if (request != null) {
+            request.mCallbacks.add(callback);
+            return request;
+        }
+
+        if (mPool != null && pyPath.length() == 0) {
+            ShellTermSession session = mPool.take(settings, initialCommand);
+            if (session != null) {
+                if (handle != null) {
+                    session.setHandle(handle);
+                }
+                callback.onSessionReady(session);
+                return null;
+            }
+        }
+
+        request = new Request(key, settings, initialCommand, pyPath, handle);
+        request.mCallbacks.add(callback);
+        mPending.put(key, request);
+        build(request);
+        return request;
+    }
+
+    /**
+     * Start an idle session for the pool, bypassing the pool and request
+     * deduplication.
+     */
+    void createIdleSession(TermSettings settings, Callback callback) {
+        createUnsharedSession(settings, "", null, callback);
+    }
+
+    /**
+     * Start a session with no initial command, bypassing the pool and
+     * request deduplication, so that every call gets a session of its own.
+     */
+    void createUnsharedSession(TermSettings settings, String pyPath, String handle,
+            Callback callback) {
+        Request request = new Request(null, settings, "", pyPath != null ? pyPath : "", handle);
+        request.mCallbacks.add(callback);
+        build(request);
+    }
+
+    /**
+     * Find a request that will give its session the given handle.
+     */
+    Request findPending(String handle) {
+        for (Request request : mPending.values()) {
+            if (handle.equals(request.mHandle)) {
+                return request;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Stop building sessions.  Sessions that finish starting afterwards are
+     * closed instead of being delivered.
+     */
+    void shutdown() {
+        mShutdown = true;
+        mPending.clear();
+        mExecutor.shutdown();
+    }
+
+    private void build(final Request request) {
+        if (mShutdown) {
+            return;
+        }
+        mExecutor.execute(new Runnable() {
+            public void run() {
+                ShellTermSession.Spawned shell = null;
+                try {
+                    shell = ShellTermSession.spawn(mContext, request.mSettings, request.mPyPath);
+                } catch (Exception e) {
+                    Log.e(TAG, "Couldn't start a shell", e);
+                }
+                final ShellTermSession.Spawned result = shell;
+                mHandler.post(new Runnable() {
+                    public void run() {
+                        deliver(request, result);
+                    }
+                });
+            }
+        });
+    }
+
+    private void deliver(Request request, ShellTermSession.Spawned shell) {
+        if (request.mKey != null) {
+            mPending.remove(request.mKey);
+        }
+        if (shell == null) {
+            if (request.mHandle != null) {
+                Log.w(TAG, "Dropping window " + request.mHandle + " and its queued commands");
+            }
+            for (Callback callback : request.mCallbacks) {
+                callback.onSessionFailed();
+            }
+            return;
+        }
+
+        ShellTermSession session = new ShellTermSession(mContext, request.mSettings,
+                request.mInitialCommand, request.mPyPath, shell);
+        if (mShutdown) {
+            session.discard();
+            return;
+        }
+        if (request.mHandle != null) {
+            session.setHandle(request.mHandle);
+        }
+        if (request.mLogOutput) {
+            RemoteInterface.setLogging(session, true, request.mLogFile);
+        }
+        for (Callback callback : request.mCallbacks) {
+            callback.onSessionReady(session);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package jackpal.androidterm;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Copies a session's raw output to a log file.
+ * <p>
+ * Output is put in a fixed-size ring buffer by the thread reading the pty
+ * and written to disk by a background thread, so a slow card never holds up
+ * the terminal.  If the writer falls behind by more than the buffer, the
+ * excess is dropped and counted rather than buffered without bound.
+ * <p>
+ * When the log reaches its size limit it is rotated: name.log becomes
+ * name.log.1, name.log.1 becomes name.log.2 and so on, and the oldest file
+ * is deleted.
+ */
+final class SessionLog implements Runnable {
+    private static final String TAG = "SessionLog";
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final int CHUNK_SIZE = 16 * 1024;
+    static final long DEFAULT_MAX_FILE_SIZE = 1024 * 1024;
+    static final int DEFAULT_MAX_FILES = 5;
+
+    private final File mFile;
+    private final long mMaxFileSize;
+    private final int mMaxFiles;
+
+    private final byte[] mRing = new byte[BUFFER_SIZE];
+    private int mHead;
+    private int mCount;
+    private boolean mClosed;
+    private long mDropped;
+    private long mWritten;
+
+    private FileOutputStream mOut;
+    private long mFileSize;
+
+    /**
+     * Start logging to file, appending if it exists.
+     *
+     * @param maxFiles Number of files to keep, including the current one.
+     */
+    SessionLog(File file, long maxFileSize, int maxFiles) throws IOException {
+        mFile = file;
+        mMaxFileSize = maxFileSize;
+        mMaxFiles = Math.max(1, maxFiles);
+
+        File dir = file.getParentFile();
+        if (dir != null && !dir.exists()) {
+            dir.mkdirs();
+        }
+        mOut = new FileOutputStream(file, true);
+        mFileSize = file.length();
+
+        Thread thread = new Thread(this, "Session log");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    File getFile() {
+        return mFile;
+    }
+
+    /** Bytes written to the log so far */
+    synchronized long getBytesWritten() {
+        return mWritten;
+    }
+
+    /** Bytes that didn't fit in the buffer and never reached the log */
+    synchronized long getBytesDropped() {
+        return mDropped;
+    }
+
+    /**
+     * Queue output for the log.  Never blocks on I/O.
+     */
+    synchronized void write(byte[] data, int offset, int count) {
+        if (mClosed) {
+            return;
+        }
+        int room = BUFFER_SIZE - mCount;
+        if (count > room) {
+            mDropped += count - room;
+            count = room;
+        }
+        int tail = (mHead + mCount) % BUFFER_SIZE;
+        int first = Math.min(count, BUFFER_SIZE - tail);
+        System.arraycopy(data, offset, mRing, tail, first);
+        System.arraycopy(data, offset + first, mRing, 0, count - first);
+        mCount += count;
+        notify();
+    }
+
+    /**
+     * Stop logging.  Output already queued is still written.
+     */
+    synchronized void close() {
+        mClosed = true;
+        notify();
+    }
+
+    public void run() {
+        byte[] chunk = new byte[CHUNK_SIZE];
+        try {
+            while (true) {
+                int count;
+                synchronized (this) {
+                    while (mCount == 0 && !mClosed) {
+                        wait();
+                    }
+                    if (mCount == 0) {
+                        break;
+                    }
+                    count = Math.min(Math.min(mCount, CHUNK_SIZE), BUFFER_SIZE - mHead);
+                    System.arraycopy(mRing, mHead, chunk, 0, count);
+                    mHead = (mHead + count) % BUFFER_SIZE;
+                    mCount -= count;
+                }
+                mOut.write(chunk, 0, count);
+                synchronized (this) {
+                    mWritten += count;
+                }
+                mFileSize += count;
+                if (mFileSize >= mMaxFileSize) {
+                    rotate();
+                }
+            }
+        } catch (InterruptedException e) {
+            // Exit
+        } catch (IOException e) {
+            Log.e(TAG, "Writing " + mFile + " failed", e);
+            synchronized (this) {
+                mClosed = true;
+            }
+        } finally {
+            try {
+                mOut.close();
+            } catch (IOException e) {
+                // Nothing to do
+            }
+        }
+    }
+
+    private void rotate() throws IOException {
+        mOut.close();
+        new File(mFile.getPath() + "." + (mMaxFiles - 1)).delete();
+        for (int i = mMaxFiles - 2; i >= 1; --i) {
+            new File(mFile.getPath() + "." + i).renameTo(new File(mFile.getPath() + "." + (i + 1)));
+        }
+        if (mMaxFiles > 1) {
+            mFile.renameTo(new File(mFile.getPath() + ".1"));
+        } else {
+            mFile.delete();
+        }
+        mOut = new FileOutputStream(mFile);
+        mFileSize = 0;
+    }
+}
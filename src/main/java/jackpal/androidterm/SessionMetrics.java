@@ -0,0 +1,194 @@
+package jackpal.androidterm;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * I/O counters and a pty-read-to-screen-update latency histogram for one
+ * session.
+ * <p>
+ * The input counters are only written on the pty I/O thread, so plain
+ * volatile fields suffice for them.  Everything else is atomic: the output
+ * counters, because a session's pty is written from the main thread, the
+ * paste thread and TermSession's writer thread; the input queue, shared by
+ * the I/O and main threads; and the latency figures, which are read on a
+ * binder thread by dumpsys.  Recording never takes a lock.  Readers may
+ * see one counter slightly ahead of another, which is fine for
+ * diagnostics.
+ */
+final class SessionMetrics {
+    /** Upper bounds, in microseconds, of the latency histogram's buckets;
+        the last bucket counts everything slower */
+    static final long[] LATENCY_BUCKETS_US = {
+        250, 500, 1000, 2000, 4000, 8000, 16000, 32000, 64000, 128000, 256000, 512000, 1024000
+    };
+
+    private volatile long mBytesIn;
+    private volatile long mReads;
+    private final AtomicLong mBytesOut = new AtomicLong();
+    private final AtomicLong mWrites = new AtomicLong();
+    private final AtomicInteger mQueued = new AtomicInteger();
+    private volatile int mMaxQueued;
+
+    private final AtomicLongArray mLatency = new AtomicLongArray(LATENCY_BUCKETS_US.length + 1);
+    private final AtomicLong mLatencyCount = new AtomicLong();
+    private final AtomicLong mLatencyTotalUs = new AtomicLong();
+    // Only raised on the main thread
+    private volatile long mLatencyMaxUs;
+
+    /**
+     * An immutable copy of a session's counters.
+     */
+    static final class Snapshot {
+        final String title;
+        final int processId;
+        final long bytesIn;
+        final long reads;
+        final long bytesOut;
+        final long writeSyscalls;
+        final long writeBatches;
+        final long totalWriteDelay;
+        final long maxWriteDelay;
+        final int inputQueued;
+        final int maxInputQueued;
+        final int headlessBuffered;
+        final long floodSkippedBytes;
+        final long[] latencyHistogram;
+        final long latencyCount;
+        final long latencyTotalUs;
+        final long latencyMaxUs;
+
+        Snapshot(String title, int processId, SessionMetrics metrics,
+                DirectPtyOutputStream directOut, int headlessBuffered, long floodSkippedBytes) {
+            this.title = title;
+            this.processId = processId;
+            bytesIn = metrics.mBytesIn;
+            reads = metrics.mReads;
+            if (directOut != null) {
+                bytesOut = directOut.getBytesWritten();
+                writeSyscalls = directOut.getSyscalls();
+                writeBatches = directOut.getBatches();
+                totalWriteDelay = directOut.getTotalQueueDelay();
+                maxWriteDelay = directOut.getMaxQueueDelay();
+            } else {
+                bytesOut = metrics.mBytesOut.get();
+                writeSyscalls = metrics.mWrites.get();
+                writeBatches = writeSyscalls;
+                totalWriteDelay = 0;
+                maxWriteDelay = 0;
+            }
+            inputQueued = metrics.mQueued.get();
+            maxInputQueued = metrics.mMaxQueued;
+            this.headlessBuffered = headlessBuffered;
+            this.floodSkippedBytes = floodSkippedBytes;
+            latencyHistogram = new long[metrics.mLatency.length()];
+            for (int i = 0; i < latencyHistogram.length; ++i) {
+                latencyHistogram[i] = metrics.mLatency.get(i);
+            }
+            latencyCount = metrics.mLatencyCount.get();
+            latencyTotalUs = metrics.mLatencyTotalUs.get();
+            latencyMaxUs = metrics.mLatencyMaxUs;
+        }
+
+        void dump(PrintWriter writer, String prefix) {
+            writer.println(prefix + "\"" + title + "\" pid " + processId);
+            writer.println(prefix + "  in: " + bytesIn + " bytes in " + reads + " reads");
+            writer.print(prefix + "  out: " + bytesOut + " bytes in " + writeSyscalls
+                    + " write syscalls, " + writeBatches + " batches");
+            if (writeBatches > 0 && totalWriteDelay > 0) {
+                writer.print(", queued " + (totalWriteDelay / writeBatches) + "ms avg, "
+                        + maxWriteDelay + "ms max");
+            }
+            writer.println();
+            writer.println(prefix + "  input queue: " + inputQueued + " (max " + maxInputQueued
+                    + "), headless buffer: " + headlessBuffered + " bytes, flood skipped: "
+                    + floodSkippedBytes + " bytes");
+            if (latencyCount == 0) {
+                return;
+            }
+            writer.println(prefix + "  read to screen: " + latencyCount + " updates, "
+                    + (latencyTotalUs / latencyCount) + "us avg, " + latencyMaxUs + "us max");
+            writer.print(prefix + "   ");
+            for (int i = 0; i < latencyHistogram.length; ++i) {
+                if (latencyHistogram[i] == 0) {
+                    continue;
+                }
+                if (i < LATENCY_BUCKETS_US.length) {
+                    writer.print(" <" + LATENCY_BUCKETS_US[i] + "us:" + latencyHistogram[i]);
+                } else {
+                    writer.print(" slower:" + latencyHistogram[i]);
+                }
+            }
+            writer.println();
+        }
+    }
+
+    /** Total bytes of output read so far */
+    long getBytesIn() {
+        return mBytesIn;
+    }
+
+    /** A chunk of output was read from the pty (I/O thread) */
+    void onRead(int count) {
+        mBytesIn += count;
+        mReads++;
+    }
+
+    /** A chunk was queued for the main thread (I/O thread) */
+    void onQueued() {
+        int queued = mQueued.incrementAndGet();
+        if (queued > mMaxQueued) {
+            mMaxQueued = queued;
+        }
+    }
+
+    /** A queued chunk was consumed (main thread) */
+    void onDequeued() {
+        mQueued.decrementAndGet();
+    }
+
+    /**
+     * The screen was updated with output first read readTime (in
+     * System.nanoTime()) or later.  Main thread.
+     */
+    void onScreenUpdate(long readTime) {
+        long us = (System.nanoTime() - readTime) / 1000;
+        int bucket = 0;
+        while (bucket < LATENCY_BUCKETS_US.length && us >= LATENCY_BUCKETS_US[bucket]) {
+            bucket++;
+        }
+        mLatency.incrementAndGet(bucket);
+        mLatencyCount.incrementAndGet();
+        mLatencyTotalUs.addAndGet(us);
+        if (us > mLatencyMaxUs) {
+            mLatencyMaxUs = us;
+        }
+    }
+
+    /**
+     * Wrap the pty's output stream to count writes.  Streams that count for
+     * themselves, like DirectPtyOutputStream, don't need this.
+     */
+    OutputStream countWrites(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                mBytesOut.incrementAndGet();
+                mWrites.incrementAndGet();
+            }
+
+            @Override
+            public void write(byte[] b, int offset, int count) throws IOException {
+                out.write(b, offset, count);
+                mBytesOut.addAndGet(count);
+                mWrites.incrementAndGet();
+            }
+        };
+    }
+}
@@ -0,0 +1,216 @@
+package jackpal.androidterm;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+
+import jackpal.androidterm.util.TermSettings;
+
+/**
+ * A few shell sessions started ahead of time, so that opening a window only
+ * has to attach a view to a running shell instead of building the
+ * environment and forking.
+ * <p>
+ * Pooled sessions run the standard environment with no initial command.
+ * They are tagged with the settings they were started with; a request made
+ * with different settings is not served from the pool, and when the
+ * settings or the {@link ShellEnvironment} change the stale sessions are
+ * closed.  Sessions idle for longer
+ * than the configured lifetime are closed and not replaced until the next
+ * window is opened.
+ * <p>
+ * All methods but {@link #getIdleCount} must be called on the main thread.
+ */
+class SessionPool {
+    // Don't compete with a window that is being opened
+    private static final long REFILL_DELAY = 1000;
+
+    private static class Entry {
+        final ShellTermSession session;
+        final String signature;
+        final long startTime;
+
+        Entry(ShellTermSession session, String signature) {
+            this.session = session;
+            this.signature = signature;
+            this.startTime = SystemClock.uptimeMillis();
+        }
+    }
+
+    private final SessionFactory mFactory;
+    private final Handler mHandler = new Handler();
+    private final ArrayList<Entry> mIdle = new ArrayList<Entry>();
+    // mIdle.size(), for other threads; updated whenever mIdle changes
+    private volatile int mIdleCount;
+
+    private TermSettings mSettings;
+    private String mSignature;
+    private int mSize;
+    private long mExpiry;
+    private boolean mRefilling;
+
+    private final Runnable mRefill = new Runnable() {
+        public void run() {
+            refill();
+        }
+    };
+
+    private final Runnable mExpire = new Runnable() {
+        public void run() {
+            expire();
+        }
+    };
+
+    SessionPool(SessionFactory factory) {
+        mFactory = factory;
+    }
+
+    /**
+     * Adopt new settings.  Idle sessions started with different settings are
+     * closed, and the pool is topped up to its (possibly new) size.
+     */
+    public void updateSettings(TermSettings settings) {
+        String signature = getSignature(settings);
+        mSettings = settings;
+        mSize = settings.getSessionPoolSize();
+        mExpiry = settings.getSessionPoolExpiry() * 60 * 1000L;
+        mSignature = signature;
+        for (int i = mIdle.size() - 1; i >= 0; --i) {
+            if (!isCurrent(mIdle.get(i), signature)) {
+                mIdle.remove(i).session.discard();
+            }
+        }
+        while (mIdle.size() > mSize) {
+            mIdle.remove(0).session.discard();
+        }
+        mHandler.removeCallbacks(mExpire);
+        expire();
+        scheduleRefill();
+    }
+
+    /**
+     * Take an idle session started with the given settings, and give it its
+     * initial command.
+     *
+     * @return the session, or null if none is available.
+     */
+    public ShellTermSession take(TermSettings settings, String initialCommand) {
+        String signature = getSignature(settings);
+        ShellTermSession session = null;
+        while (session == null && !mIdle.isEmpty()) {
+            Entry entry = mIdle.remove(0);
+            if (entry.session.getEndStat() || !isCurrent(entry, signature)) {
+                entry.session.discard();
+            } else {
+                session = entry.session;
+            }
+        }
+        scheduleRefill();
+        if (session == null) {
+            return null;
+        }
+        session.updatePrefs(settings);
+        session.setInitialCommand(initialCommand);
+        return session;
+    }
+
+    /**
+     * Number of idle sessions ready to be taken.  May be called on any
+     * thread.
+     */
+    public int getIdleCount() {
+        return mIdleCount;
+    }
+
+    /**
+     * Close all idle sessions and stop refilling.
+     */
+    public void drain() {
+        mHandler.removeCallbacks(mRefill);
+        mHandler.removeCallbacks(mExpire);
+        mSize = 0;
+        for (Entry entry : mIdle) {
+            entry.session.discard();
+        }
+        mIdle.clear();
+        mIdleCount = 0;
+    }
+
+    private void scheduleRefill() {
+        mIdleCount = mIdle.size();
+        mHandler.removeCallbacks(mRefill);
+        if (mSettings != null && !mRefilling && mIdle.size() < mSize) {
+            mHandler.postDelayed(mRefill, REFILL_DELAY);
+        }
+    }
+
+    /* Start one session at a time in the background */
+    private void refill() {
+        if (mRefilling || mIdle.size() >= mSize) {
+            return;
+        }
+        mRefilling = true;
+        final String signature = mSignature;
+        mFactory.createIdleSession(mSettings, new SessionFactory.Callback() {
+            public void onSessionReady(ShellTermSession session) {
+                mRefilling = false;
+                Entry entry = new Entry(session, signature);
+                if (mIdle.size() >= mSize || !isCurrent(entry, mSignature)) {
+                    // Drained, or settings or environment changed while it was starting
+                    session.discard();
+                } else {
+                    mIdle.add(entry);
+                    if (mExpiry > 0 && mIdle.size() == 1) {
+                        mHandler.postDelayed(mExpire, mExpiry);
+                    }
+                }
+                scheduleRefill();
+            }
+
+            public void onSessionFailed() {
+                // Don't retry right away; the next take() or settings change will
+                mRefilling = false;
+            }
+        });
+    }
+
+    private void expire() {
+        if (mExpiry <= 0) {
+            return;
+        }
+        long now = SystemClock.uptimeMillis();
+        while (!mIdle.isEmpty()) {
+            long age = now - mIdle.get(0).startTime;
+            if (age < mExpiry) {
+                mHandler.postDelayed(mExpire, mExpiry - age);
+                break;
+            }
+            mIdle.remove(0).session.discard();
+        }
+        mIdleCount = mIdle.size();
+    }
+
+    /* Whether the entry's shell still matches the settings and the
+       current environment */
+    private static boolean isCurrent(Entry entry, String signature) {
+        return entry.signature.equals(signature)
+                && entry.session.getEnvironmentVersion() == ShellEnvironment.getCurrentVersion();
+    }
+
+    /* Everything that shapes a session at startup; colors and UTF-8 mode
+       are applied again when a session is taken */
+    private static String getSignature(TermSettings settings) {
+        StringBuilder b = new StringBuilder();
+        b.append(settings.getShell()).append('\0');
+        b.append(settings.getFailsafeShell()).append('\0');
+        b.append(settings.getTermType()).append('\0');
+        b.append(settings.doPathExtensions()).append('\0');
+        b.append(settings.allowPathPrepend()).append('\0');
+        b.append(settings.getPrependPath()).append('\0');
+        b.append(settings.getAppendPath()).append('\0');
+        b.append(settings.verifyPath()).append('\0');
+        b.append(settings.useDirectIO());
+        return b.toString();
+    }
+}
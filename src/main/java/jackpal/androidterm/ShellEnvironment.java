@@ -0,0 +1,262 @@
+package jackpal.androidterm;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Environment;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import com.quseit.config.CONF;
+import com.quseit.util.FileUtils;
+import com.quseit.util.NAction;
+import com.quseit.util.NUtil;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import jackpal.androidterm.util.NStorage;
+import jackpal.androidterm.util.TermSettings;
+
+/**
+ * The environment handed to session shells, computed once and shared.
+ * <p>
+ * A snapshot holds everything that doesn't depend on the individual
+ * session: PATH, the library and Python paths, the SL4A connection details
+ * and so on.  It is rebuilt only when PATH (as verified through
+ * {@link PathCache}) or TERM change, or when the SL4A or default
+ * preferences are edited; selecting a different interpreter is one such
+ * edit.  Nothing else is checked when a session asks for the snapshot.  The
+ * session-specific entries (the script's path) are filled in by
+ * {@link #toEnv}.
+ * <p>
+ * bin/init.sh, which exports the same environment for scripts, is only
+ * rewritten when its content changes, and then atomically.
+ */
+final class ShellEnvironment {
+    private static final String TAG = "ShellEnvironment";
+
+    // Name of NStorage's preferences, where the SL4A values live
+    private static final String SL4A_PREFS = "passinger_db";
+
+    private static ShellEnvironment sCurrent;
+    private static int sVersion;
+    private static String sInitScript;
+
+    private static final SharedPreferences.OnSharedPreferenceChangeListener sInvalidator =
+        new SharedPreferences.OnSharedPreferenceChangeListener() {
+            public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
+                invalidate();
+            }
+        };
+    private static boolean sListening;
+
+    private final String mKey;
+    private final int mVersion;
+    private final String mTermType;
+    private final String mPath;
+    private final String mLibraryPath;
+    private final String mPythonPathPrefix;
+    private final String mFilesDir;
+    private final String mExternalStorage;
+    private final String mHost;
+    private final String mPort;
+    private final String mHandshake;
+    private final String mUserNo;
+    private final String mExtConf;
+
+    /**
+     * Get the current snapshot, building a new one if the old one has been
+     * invalidated or was built for different settings.
+     */
+    static synchronized ShellEnvironment get(Context context, TermSettings settings) {
+        Context app = context.getApplicationContext();
+        if (app == null) {
+            app = context;
+        }
+        if (!sListening) {
+            PreferenceManager.getDefaultSharedPreferences(app)
+                    .registerOnSharedPreferenceChangeListener(sInvalidator);
+            app.getSharedPreferences(SL4A_PREFS, 0)
+                    .registerOnSharedPreferenceChangeListener(sInvalidator);
+            sListening = true;
+        }
+
+        String path = buildPath(settings);
+        String key = getKey(settings, path);
+        ShellEnvironment env = sCurrent;
+        if (env == null || !env.mKey.equals(key)) {
+            if (env != null) {
+                sVersion++;
+            }
+            env = new ShellEnvironment(app, settings, NAction.getQPyInterpreter(app), path, key,
+                    sVersion);
+            sCurrent = env;
+        }
+        return env;
+    }
+
+    /**
+     * Drop the current snapshot; the next session builds a fresh one.
+     * Called whenever the preferences it is built from change.
+     */
+    static synchronized void invalidate() {
+        sCurrent = null;
+        sVersion++;
+    }
+
+    /**
+     * The version of the current environment.  It changes whenever a
+     * snapshot is invalidated or replaced, so a shell started with an older
+     * version may have a stale interpreter, PYTHONPATH or SL4A connection.
+     */
+    static synchronized int getCurrentVersion() {
+        return sVersion;
+    }
+
+    private ShellEnvironment(Context context, TermSettings settings, String interpreter,
+            String path, String key, int version) {
+        mKey = key;
+        mVersion = version;
+        mTermType = settings.getTermType();
+
+        File filesDir = context.getFilesDir();
+        mFilesDir = filesDir.toString();
+
+        // HACKED FOR QPython
+        File externalStorage = new File(Environment.getExternalStorageDirectory(), CONF.BASE_PATH);
+        if (!externalStorage.exists()) {
+            externalStorage.mkdir();
+        }
+        File td = new File(externalStorage, "cache");
+        if (!td.exists()) {
+            td.mkdir();
+        }
+        mExternalStorage = externalStorage.toString();
+
+        mPath = mFilesDir + "/bin:" + path;
+
+        String abiLib = NUtil.is64Bit() ? mFilesDir + "/libs/arm64-v8a/" : mFilesDir + "/libs/armeabi-v7a/";
+        mLibraryPath = ".:" + mFilesDir + "/lib/:" + mFilesDir + "/:" + filesDir.getParentFile() + "/lib/:" + abiLib;
+
+        String py3 = interpreter;
+        mPythonPathPrefix = mFilesDir + "/lib/" + py3 + "/site-packages/:"
+                + mFilesDir + "/lib/" + py3 + "/:"
+                + mFilesDir + "/lib/" + py3.replace(".", "") + ".zip:"
+                + mFilesDir + "/lib/" + py3 + "/qpyutil.zip:"
+                + mFilesDir + "/lib/" + py3 + "/lib-dynload/:"
+                + mExternalStorage + "/lib/" + py3 + "/site-packages/:";
+
+        mHost = NStorage.getSP(context, "sl4a.hostname");
+        mPort = NStorage.getSP(context, "sl4a.port");
+        mHandshake = NStorage.getSP(context, "sl4a.secue");
+        mUserNo = NAction.getUserNoId(context);
+        mExtConf = NAction.getExtConf(context);
+    }
+
+    /**
+     * This snapshot's version; see {@link #getCurrentVersion()}.
+     */
+    int getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * The environment for a session running a script from pyPath, as
+     * "VAR=value" strings.
+     */
+    String[] toEnv(String pyPath) {
+        String cache = mExternalStorage + "/cache";
+        return new String[] {
+            "TERM=" + mTermType,
+            "PATH=" + mPath,
+            "LD_LIBRARY_PATH=" + mLibraryPath,
+            "PYTHONHOME=" + mFilesDir,
+            "ANDROID_PRIVATE=" + mFilesDir,
+            "PYTHONPATH=" + mPythonPathPrefix + pyPath,
+            "PYTHONOPTIMIZE=2",
+            "TMPDIR=" + cache,
+            "AP_HOST=" + mHost,
+            "AP_PORT=" + mPort,
+            "AP_HANDSHAKE=" + mHandshake,
+            "ANDROID_PUBLIC=" + mExternalStorage,
+            "ANDROID_ARGUMENT=" + pyPath,
+            "IS_QPY3=1",
+            "QPY_USERNO=" + mUserNo,
+            "QPY_ARGUMENT=" + mExtConf,
+            "PYTHONDONTWRITEBYTECODE=1",
+            "TMP=" + cache,
+            "ANDROID_APP_PATH=" + mExternalStorage,
+            "LANG=en_US.UTF-8",
+        };
+    }
+
+    /**
+     * Write bin/init.sh exporting env, unless it already holds exactly that.
+     * The new script is written next to the old one and renamed over it, so
+     * a shell sourcing it never sees a partial file.
+     */
+    static synchronized void writeInitScript(Context context, String[] env) {
+        StringBuilder content = new StringBuilder("#!/system/bin/sh");
+        for (String var : env) {
+            content.append("\nexport ").append(var);
+        }
+        String script = content.toString().trim();
+
+        File enf = new File(context.getFilesDir(), "bin/init.sh");
+        if (script.equals(sInitScript) && enf.exists()) {
+            return;
+        }
+
+        File tmp = new File(enf.getPath() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            out.write(script.getBytes("UTF-8"));
+            out.close();
+            out = null;
+            FileUtils.chmod(tmp, 0755);
+            if (!tmp.renameTo(enf)) {
+                throw new IOException("rename to " + enf + " failed");
+            }
+            sInitScript = script;
+        } catch (Exception e) {
+            Log.e(TAG, "Couldn't write " + enf, e);
+            tmp.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // Nothing to do
+                }
+            }
+        }
+    }
+
+    private static String buildPath(TermSettings settings) {
+        String path = System.getenv("PATH");
+        if (settings.doPathExtensions()) {
+            String appendPath = settings.getAppendPath();
+            if (appendPath != null && appendPath.length() > 0) {
+                path = path + ":" + appendPath;
+            }
+
+            if (settings.allowPathPrepend()) {
+                String prependPath = settings.getPrependPath();
+                if (prependPath != null && prependPath.length() > 0) {
+                    path = prependPath + ":" + path;
+                }
+            }
+        }
+        if (settings.verifyPath()) {
+            path = PathCache.verify(path);
+        }
+        return path;
+    }
+
+    private static String getKey(TermSettings settings, String path) {
+        return Arrays.asList(settings.getTermType(), path).toString();
+    }
+}
@@ -5,30 +5,36 @@ import android.content.Context;
 import android.os.Build;
 import android.os.Environment;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Message;
+import android.os.SystemClock;
 import android.support.annotation.RequiresApi;
 import android.util.Log;
 import android.widget.Toast;
 
-import com.quseit.config.CONF;
-import com.quseit.util.FileHelper;
-import com.quseit.util.FileUtils;
-import com.quseit.util.NAction;
-import com.quseit.util.NUtil;
-
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.quseit.config.CONF;
 
 import jackpal.androidterm.compat.FileCompat;
 import jackpal.androidterm.emulatorview.ColorScheme;
 import jackpal.androidterm.emulatorview.TermSession;
 import jackpal.androidterm.emulatorview.UpdateCallback;
-import jackpal.androidterm.util.NStorage;
+import jackpal.androidterm.util.ByteRing;
+import jackpal.androidterm.util.SessionList;
 import jackpal.androidterm.util.TermSettings;
 
 /**
@@ -36,7 +42,7 @@ import jackpal.androidterm.util.TermSettings;
  * the PID of the process attached to the session, and the I/O streams used to
  * talk to the process.
  */
-public class ShellTermSession extends TermSession {
+public class ShellTermSession extends TermSession implements SessionList.Handled {
     //** Set to true to force into 80 x 24 for testing with vttest. */
     private static final boolean VTTEST_MODE = false;
     private TermSettings mSettings;
@@ -45,14 +51,17 @@ public class ShellTermSession extends TermSession {
     
     private int mProcId;
     private FileDescriptor mTermFd;
-    private Thread mWatcherThread;
 
     // A cookie which uniquely identifies this session.
     private String mHandle;
     private String pyPath = "";
 
     private String mInitialCommand;
+    // The command the session was started with, kept after it has been sent
+    private String mLaunchCommand;
     private boolean isEnd = false;
+    // Exit status reported before the emulator was started
+    private Integer mPendingExit;
 
     public static final int PROCESS_EXIT_FINISHES_SESSION = 0;
     public static final int PROCESS_EXIT_DISPLAYS_MESSAGE = 1;
@@ -60,25 +69,195 @@ public class ShellTermSession extends TermSession {
 
     private String mProcessExitMessage;
 
+    /* Size of the most recently resized session.  New sessions are started
+       at this size so that full-screen programs don't draw twice. */
+    private static volatile int sLastColumns = 80;
+    private static volatile int sLastRows = 24;
+    private int mInitialColumns;
+    private int mInitialRows;
+    private int mEnvironmentVersion;
+    private int mColumns;
+    private int mRows;
+
     private static final int PROCESS_EXITED = 1;
+    private static final int PTY_INPUT = 2;
+    private static final int FLOOD_FRAME = 3;
+    private static final int RESIZE = 4;
+
+    /* A new window size is applied to the pty and the emulator once it has
+       held for RESIZE_SETTLE_TIME, so a view that changes size over an IME
+       animation costs the program one SIGWINCH and the screen one reflow */
+    private static final long RESIZE_SETTLE_TIME = 100;
+
+    /* Flood control: output is sampled over FLOOD_SAMPLE_INTERVAL; after
+       FLOOD_ENTER_SAMPLES samples in a row above the threshold we stop
+       redrawing per chunk and redraw every FLOOD_FRAME_INTERVAL instead,
+       until the rate falls below half the threshold or output stops. */
+    private static final long FLOOD_SAMPLE_INTERVAL = 100;
+    private static final int FLOOD_ENTER_SAMPLES = 3;
+    private static final long FLOOD_FRAME_INTERVAL = 250;
+
+    private long mSampleStart;
+    private long mSampleBytes;
+    private int mFastSamples;
+    private volatile boolean mFlooding;
+    private long mFloodBytesSinceFrame;
+    private long mFloodSkippedBytes;
+
+    // Token for our pty's registration with the PtyMultiplexer
+    private int mPtyToken;
+    private boolean mForeground;
+    // Move pty traffic through pooled direct buffers (Exec.readDirect/writeDirect)
+    private boolean mDirectIO;
+    private OutputStream mPtyOut;
+    /* Input typed into a headless session goes to the pty on this thread,
+       started on the first such write, as writes block while the pty's
+       input queue is full.  DirectPtyOutputStream's batches go out on
+       PtyMultiplexer's shared writer thread instead. */
+    private HandlerThread mInputThread;
+    private Handler mInputHandler;
+    // Copy of the raw output going to disk, or null
+    private volatile SessionLog mLog;
+    /* Plain-text history: long if the long_scrollback setting was on,
+       otherwise just enough to checkpoint the recent output */
+    private ScrollbackStore mScrollback;
+    private boolean mLongScrollback;
+    /* Recent raw output for ControlServer clients, kept from when one first
+       asks for it.  Guarded by itself; readers wait on it for output. */
+    private static final int CONTROL_BUFFER_SIZE = 256 * 1024;
+    private volatile ByteRing mControlOutput;
+
+    private final SessionMetrics mMetrics = new SessionMetrics();
+    // When the chunk waiting in mMsgHandler was read, in System.nanoTime()
+    private volatile long mReadTime;
+    // When the oldest output not yet on screen was read, or 0
+    private long mUnrenderedSince;
+
+    /* While a session is headless its output is kept in mHeadlessOutput
+       instead of being fed to an emulator, which is only built (from the
+       ring's contents) once a view attaches.  Guarded by mHeadlessLock. */
+    private static final int HEADLESS_BUFFER_SIZE = 64 * 1024;
+    // How much restored output the emulator is given
+    private static final int RESTORED_TEXT_CHARS = 32 * 1024;
+    // History kept without long scrollback, comfortably more than the above
+    private static final int RECENT_LINES = 2000;
+    private final Object mHeadlessLock = new Object();
+    private ByteRing mHeadlessOutput;
+
+    // Time of the last output, input or visit, for hibernation
+    private volatile long mLastActivity = SystemClock.uptimeMillis();
+    /* Screen and scrollback saved by the session this one replaced in
+       hibernate(), restored when the emulator is built */
+    private File mHibernatedTranscript;
+    // Set once hibernate() has handed the shell to a new session
+    private ShellTermSession mSuccessor;
+    private FinishCallback mFinishCallback;
+
+    // Identifies the session's files to SessionCheckpoint, or 0
+    private int mCheckpointId;
+    /* The end of the output of the session this one is restoring after a
+       restart, shown above the new shell's prompt when the emulator is
+       built */
+    private String mRestoredText;
     
     
     @SuppressLint("HandlerLeak")
 	private Handler mMsgHandler = new Handler() {
         @Override
         public void handleMessage(Message msg) {
+            if (mSuccessor != null) {
+                // We've hibernated; anything still queued belongs to the successor
+                mSuccessor.takeOver(msg);
+                return;
+            }
             if (!isRunning()) {
             	//Log.d("TERM", "isRunning");
+                if (msg.what == PROCESS_EXITED) {
+                    mPendingExit = (Integer) msg.obj;
+                }
                 return;
             }
             if (msg.what == PROCESS_EXITED) {
             	//Log.d("TERM", "PROCESS_EXITED");
 
                 onProcessExit((Integer) msg.obj);
+            } else if (msg.what == PTY_INPUT) {
+                mMetrics.onDequeued();
+                if (mUnrenderedSince == 0) {
+                    mUnrenderedSince = mReadTime;
+                }
+                mLastActivity = SystemClock.uptimeMillis();
+                appendToEmulator((byte[]) msg.obj, msg.arg2, msg.arg1);
+                if (mFlooding) {
+                    mFloodBytesSinceFrame += msg.arg1;
+                    mFloodSkippedBytes += msg.arg1;
+                } else {
+                    updateScreen();
+                }
+                trackOutputRate(msg.arg1);
+                PtyMultiplexer.getInstance().rearm(mPtyToken);
+            } else if (msg.what == FLOOD_FRAME) {
+                onFloodFrame();
+            } else if (msg.what == RESIZE) {
+                if (msg.arg1 != mColumns || msg.arg2 != mRows) {
+                    applySize(msg.arg1, msg.arg2);
+                    notifyUpdate();
+                }
             }
         }
     };
 
+    private PtyMultiplexer.Client mPtyClient = new PtyMultiplexer.Client() {
+        public void onPtyInput(byte[] buffer, int offset, int count, boolean foreground) {
+            mMetrics.onRead(count);
+            SessionLog log = mLog;
+            if (log != null) {
+                log.write(buffer, offset, count);
+            }
+            ScrollbackStore scrollback = mScrollback;
+            if (scrollback != null) {
+                scrollback.write(buffer, offset, count);
+            }
+            ByteRing control = mControlOutput;
+            if (control != null) {
+                synchronized (control) {
+                    control.write(buffer, offset, count);
+                    control.notifyAll();
+                }
+            }
+            synchronized (mHeadlessLock) {
+                if (mHeadlessOutput != null) {
+                    mHeadlessOutput.write(buffer, offset, count);
+                    mLastActivity = SystemClock.uptimeMillis();
+                    PtyMultiplexer.getInstance().rearm(mPtyToken);
+                    return;
+                }
+            }
+            // One-shot reads: at most one chunk is waiting, so one timestamp will do
+            mReadTime = System.nanoTime();
+            mMetrics.onQueued();
+            Message msg = mMsgHandler.obtainMessage(PTY_INPUT, count, offset, buffer);
+            // Don't let a flood starve input and drawing
+            if (foreground && !mFlooding) {
+                mMsgHandler.sendMessageAtFrontOfQueue(msg);
+            } else {
+                mMsgHandler.sendMessage(msg);
+            }
+        }
+
+        public void onPtyHangup() {
+            // Nothing to do; the ProcessReaper reports the exit
+        }
+    };
+
+    private ProcessReaper.Listener mExitListener = new ProcessReaper.Listener() {
+        public void onProcessExit(int processId, int result) {
+            Log.i(TermDebug.LOG_TAG, "Subprocess exited: " + result);
+            mMsgHandler.sendMessage(mMsgHandler.obtainMessage(PROCESS_EXITED, result));
+            isEnd = true;
+        }
+    };
+
     private UpdateCallback mUTF8ModeNotify = new UpdateCallback() {
         public void onUpdate() {
             Exec.setPtyUTF8Mode(mTermFd, getUTF8Mode());
@@ -89,37 +268,65 @@ public class ShellTermSession extends TermSession {
     	return this.isEnd;
     }
     
+    /**
+     * A shell started by {@link #spawn}, not yet wrapped in a session.
+     */
+    static final class Spawned {
+        final FileDescriptor termFd;
+        final int processId;
+        final int columns;
+        final int rows;
+        // See ShellEnvironment.getVersion()
+        final int envVersion;
+        /* Set for a shell taken over from a hibernated session: it is
+           already watched by the ProcessReaper, and read under this
+           PtyMultiplexer registration if it isn't 0 */
+        final boolean takenOver;
+        final int ptyToken;
+
+        Spawned(FileDescriptor termFd, int processId, int columns, int rows, int envVersion,
+                boolean takenOver, int ptyToken) {
+            this.termFd = termFd;
+            this.processId = processId;
+            this.columns = columns;
+            this.rows = rows;
+            this.envVersion = envVersion;
+            this.takenOver = takenOver;
+            this.ptyToken = ptyToken;
+        }
+    }
+
     public ShellTermSession(Context context, TermSettings settings, String cmd, String pyPath) {
+        this(context, settings, cmd, pyPath, spawn(context, settings, pyPath));
+    }
+
+    /**
+     * Wrap a shell that was already started with {@link #spawn}.  Like all
+     * TermSessions, this must be constructed on the main thread.
+     */
+    ShellTermSession(Context context, TermSettings settings, String cmd, String pyPath, Spawned shell) {
         super();
         Log.d(TAG, "ShellTermSession(cmd):"+cmd);
         this.context = context;
+        if (cmd == null) {
+            cmd = "";
+        }
         this.pyPath = pyPath;
         this.isEnd = false;
         
         updatePrefs(settings);
 
-        initializeSession(cmd);
+        initializeSession(shell);
         this.mInitialCommand = cmd;
-
-        mWatcherThread = new Thread() {
-             @Override
-             public void run() {
-                Log.i(TermDebug.LOG_TAG, "waiting for: " + mProcId);
-                int result = Exec.waitFor(mProcId);
-                Log.i(TermDebug.LOG_TAG, "Subprocess exited: " + result);
-                mMsgHandler.sendMessage(mMsgHandler.obtainMessage(PROCESS_EXITED, result));
-                isEnd = true;
-             }
-        };
-        mWatcherThread.setName("Process watcher");
+        this.mLaunchCommand = cmd;
         //Log.d(TermDebug.LOG_TAG, "ShellTermSession:"+cmd);
     }
 
     public void shellRun() {
         //Exec.setPtyUTF8Mode(mTermFd, getUTF8Mode());
         //setUTF8ModeUpdateCallback(mUTF8ModeNotify);
-    	initializeEmulator(80,24);
-        /*mWatcherThread.start();
+    	initializeEmulator(mInitialColumns, mInitialRows);
+        /*ProcessReaper.getInstance().watch(mProcId, mExitListener);
         sendInitialCommand(mInitialCommand);*/
 
     }
@@ -135,112 +342,55 @@ public class ShellTermSession extends TermSession {
         }
     }
     
-    private void initializeSession(String cmd) {
-        Log.d(TAG, "initializeSession:"+cmd);
-        TermSettings settings = mSettings;
+    /**
+     * Build the environment and start the shell for a session.  This does
+     * the file system work and the fork, and may be called on any thread.
+     */
+    static Spawned spawn(Context context, TermSettings settings, String pyPath) {
+        Log.d(TAG, "spawn:"+pyPath);
+        ShellEnvironment snapshot = ShellEnvironment.get(context, settings);
+        String[] env = snapshot.toEnv(pyPath);
+        ShellEnvironment.writeInitScript(context, env);
 
+        int columns = sLastColumns;
+        int rows = sLastRows;
         int[] processId = new int[1];
+        FileDescriptor termFd = createSubprocess(processId, settings, env, columns, rows);
+        return new Spawned(termFd, processId[0], columns, rows, snapshot.getVersion(), false, 0);
+    }
 
-        String path = System.getenv("PATH");
-        if (settings.doPathExtensions()) {
-            String appendPath = settings.getAppendPath();
-            if (appendPath != null && appendPath.length() > 0) {
-                path = path + ":" + appendPath;
-            }
+    private void initializeSession(Spawned shell) {
+        TermSettings settings = mSettings;
 
-            if (settings.allowPathPrepend()) {
-                String prependPath = settings.getPrependPath();
-                if (prependPath != null && prependPath.length() > 0) {
-                    path = prependPath + ":" + path;
-                }
-            }
+        mTermFd = shell.termFd;
+        mProcId = shell.processId;
+        mInitialColumns = shell.columns;
+        mInitialRows = shell.rows;
+        mEnvironmentVersion = shell.envVersion;
+        if (shell.takenOver) {
+            mPtyToken = shell.ptyToken;
+            /* If the shell has exited already, the exit is queued for the
+               session we replace, which passes it on */
+            ProcessReaper.getInstance().setListener(mProcId, mExitListener);
+        } else {
+            // Watch from the start, so a shell that dies while idle is reaped
+            ProcessReaper.getInstance().watch(mProcId, mExitListener);
         }
-        if (settings.verifyPath()) {
-            path = checkPath(path);
-        }
-        String[] env = new String[20];
-        File filesDir = this.context.getFilesDir();
-
-        // HACKED FOR QPython
-        File externalStorage = new File(Environment.getExternalStorageDirectory(), CONF.BASE_PATH);
-
-        if (!externalStorage.exists()) {
-            externalStorage.mkdir();
-        }
-        File td = new File(externalStorage+"/cache");
-        if (!td.exists()) {
-            td.mkdir();
-        }
-
-        String py3 = NAction.getQPyInterpreter(this.context);
-
-        String abiLib = NUtil.is64Bit() ? filesDir+"/libs/arm64-v8a/" : filesDir+"/libs/armeabi-v7a/";
-
-        env[0] = "TERM=" + settings.getTermType();
-        env[1] = "PATH=" + this.context.getFilesDir()+"/bin"+":"+path;
-        env[2] = "LD_LIBRARY_PATH=.:"+filesDir+"/lib/"+":"+filesDir+"/:"+filesDir.getParentFile()+"/lib/:"+abiLib;
-        env[3] = "PYTHONHOME="+filesDir;
-        env[4] = "ANDROID_PRIVATE="+filesDir;
-        env[5] = "PYTHONPATH="
-                +filesDir+"/lib/"+py3+"/site-packages/:"
-                +filesDir+"/lib/"+py3+"/:"
-                +filesDir+"/lib/"+py3.replace(".","")+".zip:"
-                +filesDir+"/lib/"+py3+"/qpyutil.zip:"
-                +filesDir+"/lib/"+py3+"/lib-dynload/:"
-                +externalStorage+"/lib/"+py3+"/site-packages/:"
-                +pyPath;
-        env[6] = "PYTHONOPTIMIZE=2";
-        env[7] = "TMPDIR="+externalStorage+"/cache";
-        env[8] = "AP_HOST="+NStorage.getSP(this.context, "sl4a.hostname");
-        env[9] = "AP_PORT="+NStorage.getSP(this.context, "sl4a.port");
-        env[10] = "AP_HANDSHAKE="+NStorage.getSP(this.context, "sl4a.secue");
-        env[11] = "ANDROID_PUBLIC="+externalStorage;
-        env[12] = "ANDROID_ARGUMENT="+pyPath;
-        env[13] = "IS_QPY3=1";
-        env[14] = "QPY_USERNO="+NAction.getUserNoId(context);
-        env[15] = "QPY_ARGUMENT="+NAction.getExtConf(context);
-        env[16] = "PYTHONDONTWRITEBYTECODE=1";
-        env[17] = "TMP="+externalStorage+"/cache";
-        env[18] = "ANDROID_APP_PATH="+externalStorage+"";
-        env[19] = "LANG=en_US.UTF-8";
-
-        File enf = new File(context.getFilesDir()+"/bin/init.sh");
-        //if (! enf.exists()) {
-    	String content = "#!/system/bin/sh";
-        for (int i=0;i<env.length;i++) {
-        	content += "\nexport "+env[i];
-        }
-    	FileHelper.putFileContents(context, enf.getAbsolutePath(), content.trim());
-		try {
-			FileUtils.chmod(enf, 0755);
-		}
-		catch (Exception e) {
-			e.printStackTrace();
-		}
-
-        //}
-        //File libPath = context.getFilesDir();
-        //loadLibrary(libPath);
 
-        
-        createSubprocess(processId, settings.getShell(), env);
-        mProcId = processId[0];
-
-        setTermOut(new FileOutputStream(mTermFd));
-        setTermIn(new FileInputStream(mTermFd));
-    }
-
-    private String checkPath(String path) {
-        String[] dirs = path.split(":");
-        StringBuilder checkedPath = new StringBuilder(path.length());
-        for (String dirname : dirs) {
-            File dir = new File(dirname);
-            if (dir.isDirectory() && FileCompat.canExecute(dir)) {
-                checkedPath.append(dirname);
-                checkedPath.append(":");
-            }
+        mDirectIO = settings.useDirectIO();
+        mLongScrollback = settings.useLongScrollback();
+        mScrollback = mLongScrollback ? new ScrollbackStore() : new ScrollbackStore(RECENT_LINES);
+        if (mDirectIO) {
+            mPtyOut = new DirectPtyOutputStream(mTermFd, PtyMultiplexer.getBufferPool(),
+                    PtyMultiplexer.getWriterLooper());
+        } else {
+            mPtyOut = mMetrics.countWrites(new FileOutputStream(mTermFd));
         }
-        return checkedPath.substring(0, checkedPath.length()-1);
+        setTermOut(mPtyOut);
+        /* Output from the pty is read by the PtyMultiplexer and handed to us
+           in mMsgHandler.  An empty input stream makes TermSession's own
+           reader thread exit immediately instead of parking on the pty. */
+        setTermIn(new ByteArrayInputStream(new byte[0]));
     }
 
     @Override
@@ -250,12 +400,178 @@ public class ShellTermSession extends TermSession {
             rows = 24;
         }
         super.initializeEmulator(columns, rows);
+        mColumns = columns;
+        mRows = rows;
 
         Exec.setPtyUTF8Mode(mTermFd, getUTF8Mode());
         setUTF8ModeUpdateCallback(mUTF8ModeNotify);
 
-        mWatcherThread.start();
+        if (mRestoredText != null) {
+            showRestoredText();
+        }
+        if (mHibernatedTranscript != null) {
+            restoreTranscript();
+        }
+
+        byte[] backlog = null;
+        synchronized (mHeadlessLock) {
+            if (mHeadlessOutput != null) {
+                backlog = mHeadlessOutput.toByteArray();
+                if (mHeadlessOutput.getDiscarded() > 0) {
+                    backlog = dropPartialLine(backlog);
+                }
+                mHeadlessOutput = null;
+            }
+        }
+        if (backlog != null) {
+            // Output from now on is posted to mMsgHandler, so it lands after this
+            appendToEmulator(backlog, 0, backlog.length);
+            notifyUpdate();
+        }
+
+        PtyMultiplexer mux = PtyMultiplexer.getInstance();
+        if (mPtyToken == 0) {
+            mPtyToken = mux.register(mTermFd, mPtyClient, mDirectIO);
+        }
+        mux.setForeground(mPtyToken, mForeground);
+
+        if (mPendingExit != null) {
+            // The shell died before anybody looked at it
+            mMsgHandler.sendMessage(mMsgHandler.obtainMessage(PROCESS_EXITED, mPendingExit));
+            mPendingExit = null;
+        } else {
+            sendInitialCommand(mInitialCommand);
+        }
+    }
+
+    /**
+     * Let the shell run without an emulator.  Its output is read right away
+     * and the most recent {@link #HEADLESS_BUFFER_SIZE} bytes are kept; the
+     * emulator is built from them when a view first attaches.  Must be called
+     * on the main thread, before the session is attached.
+     */
+    void startHeadless() {
+        if (isRunning() || mPtyToken != 0) {
+            return;
+        }
+        synchronized (mHeadlessLock) {
+            if (mHeadlessOutput == null) {
+                mHeadlessOutput = new ByteRing(HEADLESS_BUFFER_SIZE);
+            }
+            // Under the lock, so the multiplexer can't rearm before we have a token
+            mPtyToken = PtyMultiplexer.getInstance().register(mTermFd, mPtyClient, mDirectIO);
+            if (mPtyToken == 0) {
+                mHeadlessOutput = null;
+            }
+        }
         sendInitialCommand(mInitialCommand);
+        mInitialCommand = "";
+    }
+
+    /**
+     * TermSession's writer thread only starts with the emulator, so input
+     * for a headless session goes to the pty from our input thread.
+     */
+    @Override
+    public void write(byte[] data, int offset, int count) {
+        mLastActivity = SystemClock.uptimeMillis();
+        if (!isHeadless()) {
+            super.write(data, offset, count);
+            return;
+        }
+        final byte[] copy = new byte[count];
+        System.arraycopy(data, offset, copy, 0, count);
+        getInputHandler().post(new Runnable() {
+            public void run() {
+                try {
+                    mPtyOut.write(copy, 0, copy.length);
+                    mPtyOut.flush();
+                } catch (IOException e) {
+                    Log.e(TAG, "Write to headless session failed", e);
+                }
+            }
+        });
+    }
+
+    private synchronized Handler getInputHandler() {
+        if (mInputHandler == null) {
+            mInputThread = new HandlerThread("Pty input");
+            mInputThread.setDaemon(true);
+            mInputThread.start();
+            mInputHandler = new Handler(mInputThread.getLooper());
+        }
+        return mInputHandler;
+    }
+
+    private synchronized void stopInputThread() {
+        if (mInputThread != null) {
+            mInputThread.quit();
+            mInputThread = null;
+            mInputHandler = null;
+        }
+    }
+
+    /**
+     * The {@link ShellEnvironment#getVersion() version} of the environment
+     * the shell was started with.
+     */
+    int getEnvironmentVersion() {
+        return mEnvironmentVersion;
+    }
+
+    /**
+     * True if the session is running without an emulator.
+     */
+    public boolean isHeadless() {
+        synchronized (mHeadlessLock) {
+            return mHeadlessOutput != null;
+        }
+    }
+
+    /**
+     * Bytes of output held for a headless session.
+     */
+    public int getHeadlessBufferedBytes() {
+        synchronized (mHeadlessLock) {
+            return (mHeadlessOutput != null) ? mHeadlessOutput.size() : 0;
+        }
+    }
+
+    /* When the start of the backlog has been lost, skip ahead to the next line
+       so the emulator doesn't begin in the middle of an escape sequence. */
+    private static byte[] dropPartialLine(byte[] backlog) {
+        for (int i = 0; i < backlog.length; ++i) {
+            if (backlog[i] == '\n') {
+                byte[] rest = new byte[backlog.length - i - 1];
+                System.arraycopy(backlog, i + 1, rest, 0, rest.length);
+                return rest;
+            }
+        }
+        return backlog;
+    }
+
+    /**
+     * Replace the command typed into the shell once the session is attached
+     * to a view.  Used to hand a pre-started session a job; has no effect
+     * after the emulator has been initialized.
+     */
+    public void setInitialCommand(String initialCommand) {
+        mInitialCommand = (initialCommand != null) ? initialCommand : "";
+        mLaunchCommand = mInitialCommand;
+    }
+
+    /**
+     * The command the session was started with, or "".
+     */
+    String getLaunchCommand() {
+        return mLaunchCommand;
+    }
+
+    /**
+     * The script directory added to the session's PYTHONPATH, or "".
+     */
+    String getPyPath() {
+        return pyPath;
     }
 
     private void sendInitialCommand(String initialCommand) {
@@ -265,8 +581,9 @@ public class ShellTermSession extends TermSession {
         }
     }
 
-     private void createSubprocess(int[] processId, String shell, String[] env) {
-        ArrayList<String> argList = parse(shell);
+    private static FileDescriptor createSubprocess(int[] processId, TermSettings settings,
+            String[] env, int columns, int rows) {
+        ArrayList<String> argList = parse(settings.getShell());
         String arg0;
         String[] args;
 
@@ -283,16 +600,16 @@ public class ShellTermSession extends TermSession {
             args = argList.toArray(new String[1]);
 
         } catch (Exception e) {
-            argList = parse(mSettings.getFailsafeShell());
+            argList = parse(settings.getFailsafeShell());
             arg0 = argList.get(0);
             args = argList.toArray(new String[1]);
         }
 
 
-        mTermFd = Exec.createSubprocess(arg0, args, env, processId);
+        return Exec.createSubprocess(arg0, args, env, null, rows, columns, processId);
     }
 
-    private ArrayList<String> parse(String cmd) {
+    private static ArrayList<String> parse(String cmd) {
         final int PLAIN = 0;
         final int WHITESPACE = 1;
         final int INQUOTE = 2;
@@ -346,9 +663,24 @@ public class ShellTermSession extends TermSession {
             columns = 80;
             rows = 24;
         }
+        if (mColumns == 0) {
+            // The first size builds the emulator, which the view needs now
+            applySize(columns, rows);
+            return;
+        }
+        mMsgHandler.removeMessages(RESIZE);
+        mMsgHandler.sendMessageDelayed(mMsgHandler.obtainMessage(RESIZE, columns, rows),
+                RESIZE_SETTLE_TIME);
+    }
+
+    private void applySize(int columns, int rows) {
         // Inform the attached pty of our new size:
         Exec.setPtyWindowSize(mTermFd, rows, columns, 0, 0);
         super.updateSize(columns, rows);
+        mColumns = columns;
+        mRows = rows;
+        sLastColumns = columns;
+        sLastRows = rows;
     }
 
     /* XXX We should really get this ourselves from the resource bundle, but
@@ -357,7 +689,101 @@ public class ShellTermSession extends TermSession {
         mProcessExitMessage = message;
     }
 
+    private void trackOutputRate(int count) {
+        if (!mSettings.floodControl()) {
+            if (mFlooding) {
+                endFlood();
+            }
+            return;
+        }
+
+        long now = SystemClock.uptimeMillis();
+        mSampleBytes += count;
+        long elapsed = now - mSampleStart;
+        if (elapsed < FLOOD_SAMPLE_INTERVAL) {
+            return;
+        }
+        long rate = mSampleBytes * 1000 / elapsed;
+        long threshold = Math.max(1, mSettings.getFloodThreshold()) * 1024L;
+        if (rate >= threshold) {
+            if (++mFastSamples >= FLOOD_ENTER_SAMPLES && !mFlooding) {
+                startFlood();
+            }
+        } else {
+            mFastSamples = 0;
+            if (mFlooding && rate < threshold / 2) {
+                endFlood();
+            }
+        }
+        mSampleStart = now;
+        mSampleBytes = 0;
+    }
+
+    private void startFlood() {
+        Log.d(TAG, "Output flood, redrawing every " + FLOOD_FRAME_INTERVAL + "ms");
+        mFlooding = true;
+        mFloodBytesSinceFrame = 0;
+        mMsgHandler.sendEmptyMessageDelayed(FLOOD_FRAME, FLOOD_FRAME_INTERVAL);
+    }
+
+    private void onFloodFrame() {
+        if (!mFlooding) {
+            return;
+        }
+        updateScreen();
+        if (mFloodBytesSinceFrame == 0) {
+            // Output stopped
+            endFlood();
+        } else {
+            mFloodBytesSinceFrame = 0;
+            mMsgHandler.sendEmptyMessageDelayed(FLOOD_FRAME, FLOOD_FRAME_INTERVAL);
+        }
+    }
+
+    private void endFlood() {
+        mFlooding = false;
+        mFastSamples = 0;
+        mMsgHandler.removeMessages(FLOOD_FRAME);
+        updateScreen();
+    }
+
+    private void updateScreen() {
+        notifyUpdate();
+        if (mUnrenderedSince != 0) {
+            mMetrics.onScreenUpdate(mUnrenderedSince);
+            mUnrenderedSince = 0;
+        }
+    }
+
+    /**
+     * Bytes of output read from the shell so far.  May be called on any
+     * thread.
+     */
+    long getBytesRead() {
+        return mMetrics.getBytesIn();
+    }
+
+    /**
+     * A copy of this session's I/O counters and latency histogram.  May be
+     * called on any thread.
+     */
+    SessionMetrics.Snapshot getMetricsSnapshot(String defaultTitle) {
+        return new SessionMetrics.Snapshot(getTitle(defaultTitle), mProcId, mMetrics,
+                getDirectOutput(), getHeadlessBufferedBytes(), mFloodSkippedBytes);
+    }
+
+    /**
+     * Number of output bytes that were fed to the emulator during output
+     * floods without a screen update of their own.
+     */
+    public long getFloodSkippedBytes() {
+        return mFloodSkippedBytes;
+    }
+
     private void onProcessExit(int result) {
+        if (mFlooding) {
+            endFlood();
+        }
         if (mSettings.closeWindowOnProcessExit()) {
             finish();
         } else if (mProcessExitMessage != null) {
@@ -371,14 +797,403 @@ public class ShellTermSession extends TermSession {
         }
     }
 
+    /**
+     * Tell the session whether it is the one currently on screen.  Output
+     * from the foreground session is read and displayed ahead of output from
+     * background sessions.
+     */
+    public void setForeground(boolean foreground) {
+        mForeground = foreground;
+        mLastActivity = SystemClock.uptimeMillis();
+        if (mPtyToken != 0) {
+            PtyMultiplexer.getInstance().setForeground(mPtyToken, foreground);
+        }
+    }
+
+    public boolean isForeground() {
+        return mForeground;
+    }
+
+    /**
+     * Start copying everything the shell prints to file, rotating it when it
+     * grows past {@link SessionLog#DEFAULT_MAX_FILE_SIZE}.  Replaces any log
+     * already running.
+     *
+     * @param file The log file, or null for a new file in the log directory.
+     */
+    public synchronized File startLog(File file) throws IOException {
+        if (file == null) {
+            file = new File(getLogDirectory(), "session-" + System.currentTimeMillis() + ".log");
+        }
+        SessionLog log = new SessionLog(file, SessionLog.DEFAULT_MAX_FILE_SIZE,
+                SessionLog.DEFAULT_MAX_FILES);
+        SessionLog old = mLog;
+        mLog = log;
+        if (old != null) {
+            old.close();
+        }
+        return file;
+    }
+
+    /**
+     * Stop logging this session's output, if it is being logged.
+     */
+    public synchronized void stopLog() {
+        if (mLog != null) {
+            mLog.close();
+            mLog = null;
+        }
+    }
+
+    /**
+     * The file this session's output is being logged to, or null.
+     */
+    public File getLogFile() {
+        SessionLog log = mLog;
+        return (log != null) ? log.getFile() : null;
+    }
+
+    static File getLogDirectory() {
+        return new File(new File(Environment.getExternalStorageDirectory(), CONF.BASE_PATH), "log");
+    }
+
+    /**
+     * Milliseconds since the session last printed anything, was typed into
+     * or was brought on screen.
+     */
+    public long getIdleTime() {
+        return SystemClock.uptimeMillis() - mLastActivity;
+    }
+
+    /**
+     * True if the session's contents are saved to storage, waiting for it to
+     * be shown again.
+     */
+    public boolean isHibernated() {
+        return mHibernatedTranscript != null;
+    }
+
+    /**
+     * Save the screen and scrollback to file and hand the shell over to a
+     * new, headless session, so that this session's emulator and transcript
+     * can be freed.  The new session rebuilds the screen from file when it
+     * is next shown.  Only the text is kept: colors and attributes are lost.
+     * <p>
+     * The caller must put the returned session in this one's place.  This
+     * session is dead afterwards, and doesn't call its finish callback.
+     *
+     * @return the session now running the shell, or null if this one can't
+     *     hibernate.
+     */
+    ShellTermSession hibernate(File file) throws IOException {
+        if (!isRunning() || isEnd) {
+            return null;
+        }
+        writeTranscript(file, super.getTranscriptText());
+
+        // Flood frames only redraw our emulator, which is going away
+        if (mFlooding) {
+            mFlooding = false;
+            mMsgHandler.removeMessages(FLOOD_FRAME);
+        }
+
+        /* The successor keeps our pty registration and process watch;
+           anything already read, and any resize or exit still queued, is
+           passed on by takeOver() from mMsgHandler */
+        final ShellTermSession successor = new ShellTermSession(context, mSettings, "", pyPath,
+                new Spawned(mTermFd, mProcId, mColumns, mRows, mEnvironmentVersion, true, mPtyToken));
+        successor.mHibernatedTranscript = file;
+        successor.mHandle = mHandle;
+        successor.mLaunchCommand = mLaunchCommand;
+        successor.mCheckpointId = mCheckpointId;
+        successor.mProcessExitMessage = mProcessExitMessage;
+        successor.setTitle(getTitle());
+        successor.setFinishCallback(mFinishCallback);
+        successor.mLastActivity = mLastActivity;
+        successor.mLog = mLog;
+        successor.mControlOutput = mControlOutput;
+        if (successor.mScrollback != null) {
+            successor.mScrollback.close();
+        }
+        successor.mScrollback = mScrollback;
+        successor.mLongScrollback = mLongScrollback;
+        synchronized (successor.mHeadlessLock) {
+            successor.mHeadlessOutput = new ByteRing(HEADLESS_BUFFER_SIZE);
+        }
+        mSuccessor = successor;
+        if (mPtyToken != 0) {
+            /* Returns once our client is done with any chunk it is being
+               handed, so it doesn't see the fields below go away */
+            PtyMultiplexer mux = PtyMultiplexer.getInstance();
+            mux.setClient(mPtyToken, successor.mPtyClient);
+            mux.setForeground(mPtyToken, false);
+            mPtyToken = 0;
+        }
+        mLog = null;
+        mScrollback = null;
+        if (successor.mPtyToken == 0) {
+            // Start reading only after our queued output has been passed on
+            mMsgHandler.post(new Runnable() {
+                public void run() {
+                    successor.startHeadless();
+                }
+            });
+        }
+
+        /* Free the emulator without touching the shell: TermSession.finish()
+           closes the output stream, which for a FileOutputStream would close
+           the pty. */
+        setFinishCallback(null);
+        setUTF8ModeUpdateCallback(null);
+        OutputStream ptyOut = mPtyOut;
+        setTermOut(new ByteArrayOutputStream());
+        if (mDirectIO) {
+            ptyOut.close();
+        }
+        stopInputThread();
+        super.finish();
+        return successor;
+    }
+
+    /* Handle a message sent to the session we replaced in hibernate() */
+    private void takeOver(Message msg) {
+        if (msg.what == PTY_INPUT) {
+            boolean headless;
+            synchronized (mHeadlessLock) {
+                headless = mHeadlessOutput != null;
+                if (headless) {
+                    mHeadlessOutput.write((byte[]) msg.obj, msg.arg2, msg.arg1);
+                }
+            }
+            if (!headless) {
+                appendToEmulator((byte[]) msg.obj, msg.arg2, msg.arg1);
+                notifyUpdate();
+            }
+            // The chunk was read under the registration we now hold
+            PtyMultiplexer.getInstance().rearm(mPtyToken);
+        } else if (msg.what == PROCESS_EXITED) {
+            mMsgHandler.sendMessage(mMsgHandler.obtainMessage(PROCESS_EXITED, msg.obj));
+        } else if (msg.what == RESIZE) {
+            if (mColumns == 0) {
+                // No emulator yet; the pty should still know the window's size
+                Exec.setPtyWindowSize(mTermFd, msg.arg2, msg.arg1, 0, 0);
+                mInitialColumns = msg.arg1;
+                mInitialRows = msg.arg2;
+            } else {
+                updateSize(msg.arg1, msg.arg2);
+            }
+        }
+        // FLOOD_FRAME only redrew the old emulator
+    }
+
+    private static void writeTranscript(File file, String transcript) throws IOException {
+        File dir = file.getParentFile();
+        if (dir != null && !dir.exists()) {
+            dir.mkdirs();
+        }
+        OutputStream out = new GZIPOutputStream(new FileOutputStream(file));
+        try {
+            out.write(transcript.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    private void restoreTranscript() {
+        File file = mHibernatedTranscript;
+        mHibernatedTranscript = null;
+        InputStream in = null;
+        try {
+            in = new GZIPInputStream(new FileInputStream(file));
+            ByteArrayOutputStream text = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                text.write(buffer, 0, read);
+            }
+            byte[] screen = text.toString("UTF-8").replace("\n", "\r\n").getBytes("UTF-8");
+            appendToEmulator(screen, 0, screen.length);
+            notifyUpdate();
+        } catch (IOException e) {
+            Log.e(TAG, "Couldn't restore " + file, e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Nothing to do
+                }
+            }
+            file.delete();
+        }
+    }
+
+    int getCheckpointId() {
+        return mCheckpointId;
+    }
+
+    void setCheckpointId(int id) {
+        mCheckpointId = id;
+    }
+
+    /**
+     * Show the output of a session from before the process was restarted
+     * ahead of this one's.  Its history goes into ours, so the next
+     * checkpoint keeps it; the emulator gets the most recent part.
+     * Must be called before the session is attached.
+     */
+    void restoreCheckpoint(SessionCheckpoint.Restored restored) {
+        if (restored.title.length() > 0) {
+            setTitle(restored.title);
+        }
+        if (mScrollback != null) {
+            for (ScrollbackStore.Block block : restored.blocks) {
+                mScrollback.addBlock(block);
+            }
+            try {
+                byte[] text = restored.text.getBytes("UTF-8");
+                mScrollback.write(text, 0, text.length);
+            } catch (UnsupportedEncodingException e) {
+                // Never happens
+            }
+        }
+        String text = restored.getRecentText(RESTORED_TEXT_CHARS);
+        String banner = (restored.command.length() > 0)
+                ? context.getString(R.string.checkpoint_restored_command, restored.command)
+                : context.getString(R.string.checkpoint_restored);
+        if (text.length() > 0 && !text.endsWith("\n")) {
+            text += "\n";
+        }
+        mRestoredText = text + "[" + banner + "]\n";
+    }
+
+    private void showRestoredText() {
+        try {
+            byte[] text = mRestoredText.replace("\n", "\r\n").getBytes("UTF-8");
+            appendToEmulator(text, 0, text.length);
+            notifyUpdate();
+        } catch (UnsupportedEncodingException e) {
+            // Never happens
+        }
+        mRestoredText = null;
+    }
+
+    /**
+     * The most recent {@link #CONTROL_BUFFER_SIZE} bytes of raw output,
+     * counted from the first call.  Written on the pty I/O thread: lock the
+     * ring to read it, and wait on it for more output.
+     */
+    synchronized ByteRing getControlOutput() {
+        if (mControlOutput == null) {
+            mControlOutput = new ByteRing(CONTROL_BUFFER_SIZE);
+        }
+        return mControlOutput;
+    }
+
+    /**
+     * The long history of this session's output, or null if it doesn't keep
+     * one.
+     */
+    ScrollbackStore getScrollback() {
+        return mLongScrollback ? mScrollback : null;
+    }
+
+    /**
+     * The history checkpoints are made from: the long scrollback, or the
+     * last few thousand lines.  Unlike the transcript it can be read off the
+     * main thread.
+     */
+    ScrollbackStore getHistory() {
+        return mScrollback;
+    }
+
+    @Override
+    public void setFinishCallback(FinishCallback callback) {
+        mFinishCallback = callback;
+        super.setFinishCallback(callback);
+    }
+
     @Override
     public void finish() {
     	//Log.d("ShellTermSession", "finish");
+        if (!isRunning()) {
+            // Never attached; TermSession.finish() needs an emulator
+            discard();
+            if (mFinishCallback != null) {
+                mFinishCallback.onSessionFinish(this);
+            }
+            return;
+        }
+        stopLog();
+        if (mPtyToken != 0) {
+            PtyMultiplexer.getInstance().unregister(mPtyToken);
+            mPtyToken = 0;
+        }
+        stopInputThread();
+        closeDirectOutput();
         Exec.hangupProcessGroup(mProcId);
         Exec.close(mTermFd);
+        if (mScrollback != null) {
+            mScrollback.close();
+        }
         super.finish();
     }
 
+    /**
+     * The coalescing writer feeding our pty, for its byte, syscall and
+     * queueing delay counters, or null when direct I/O is off.
+     */
+    DirectPtyOutputStream getDirectOutput() {
+        return mDirectIO ? (DirectPtyOutputStream) mPtyOut : null;
+    }
+
+    /* Close the direct stream before the pty, so a batch being written out
+       finishes first (close() waits for it) and none is written to a
+       reused fd afterwards.  A plain FileOutputStream would close the pty
+       itself, so that is left to the caller. */
+    private void closeDirectOutput() {
+        if (mDirectIO) {
+            try {
+                mPtyOut.close();
+            } catch (IOException e) {
+                // Nothing to do
+            }
+        }
+    }
+
+    /**
+     * Shut down a session without telling its finish callback, as when it
+     * was never shown.
+     */
+    void discard() {
+        stopLog();
+        if (isRunning()) {
+            setFinishCallback(null);
+            finish();
+            return;
+        }
+        if (mPtyToken != 0) {
+            PtyMultiplexer.getInstance().unregister(mPtyToken);
+            mPtyToken = 0;
+        }
+        stopInputThread();
+        closeDirectOutput();
+        Exec.hangupProcessGroup(mProcId);
+        Exec.close(mTermFd);
+        try {
+            mPtyOut.close();
+        } catch (IOException e) {
+            // Nothing to do
+        }
+        if (mHibernatedTranscript != null) {
+            mHibernatedTranscript.delete();
+            mHibernatedTranscript = null;
+        }
+        if (mScrollback != null) {
+            mScrollback.close();
+        }
+    }
+
     /**
      * Gets the terminal session's title.  Unlike the superclass's getTitle(),
      * if the title is null or an empty string, the provided default title will
@@ -396,6 +1211,10 @@ public class ShellTermSession extends TermSession {
         }
     }
 
+    /**
+     * Give the session a handle.  If it is already in a SessionList, tell
+     * the list with {@link SessionList#handleChanged}.
+     */
     public void setHandle(String handle) {
         if (mHandle != null) {
             throw new IllegalStateException("Cannot change handle once set");
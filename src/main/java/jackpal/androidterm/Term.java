@@ -20,6 +20,7 @@ import android.annotation.SuppressLint;
 import android.app.ActionBar;
 import android.app.Activity;
 import android.app.AlertDialog;
+import android.app.ProgressDialog;
 import android.content.ActivityNotFoundException;
 import android.content.BroadcastReceiver;
 import android.content.ComponentName;
@@ -39,6 +40,7 @@ import android.os.Handler;
 import android.os.IBinder;
 import android.os.PowerManager;
 import android.preference.PreferenceManager;
+import android.support.v4.content.FileProvider;
 import android.text.ClipboardManager;
 import android.util.DisplayMetrics;
 import android.util.Log;
@@ -54,6 +56,8 @@ import android.view.ViewGroup;
 import android.view.Window;
 import android.view.WindowManager;
 import android.view.inputmethod.InputMethodManager;
+import android.widget.CheckBox;
+import android.widget.EditText;
 import android.widget.TextView;
 import android.widget.Toast;
 import android.widget.Toolbar;
@@ -71,10 +75,11 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.UnsupportedEncodingException;
+import java.io.OutputStream;
 import java.text.Collator;
 import java.util.Arrays;
 import java.util.Locale;
+import java.util.regex.PatternSyntaxException;
 
 import jackpal.androidterm.compat.ActionBarCompat;
 import jackpal.androidterm.compat.ActivityCompat;
@@ -124,10 +129,25 @@ public class Term extends Activity implements UpdateCallback {
     private Intent mLastNewIntent;
 
     public static final int REQUEST_CHOOSE_WINDOW = 1;
+    private static final int REQUEST_EXPORT_TRANSCRIPT = 2;
+    // Emailed transcripts, shared through the FileProvider in our manifest
+    private static final String TRANSCRIPT_CACHE_DIR = "transcripts";
+    private static final String TRANSCRIPT_PROVIDER_SUFFIX = ".transcripts";
+    private static final long TRANSCRIPT_CACHE_TIME = 24 * 60 * 60 * 1000L;
     public static final String EXTRA_WINDOW_ID = "jackpal.androidterm.window_id";
     private int onResumeSelectWindow = -1;
 
     private PowerManager.WakeLock mWakeLock;
+    // The paste being typed in, and its progress dialog
+    private PasteJob mPasteJob;
+    private ProgressDialog mPasteProgress;
+    // The transcript export running, its progress dialog, and the format
+    // picked for the export waiting on the document picker
+    private TranscriptExporter mExporter;
+    private ProgressDialog mExportProgress;
+    private int mExportFormat;
+    // The search being stepped through
+    private ScrollbackSearch mSearch;
     private WifiManager.WifiLock mWifiLock;
     // Available on API 12 and later
     private static final int WIFI_MODE_FULL_HIGH_PERF = 3;
@@ -190,14 +210,18 @@ public class Term extends Activity implements UpdateCallback {
 
         @Override
         public View getView(int position, View convertView, ViewGroup parent) {
-            TextView label = new TextView(Term.this);
-            String title = getSessionTitle(position, getString(R.string.window_title, position + 1));
-            label.setText(title);
-            if (AndroidCompat.SDK >= 13) {
-                label.setTextAppearance(Term.this, TextAppearance_Holo_Widget_ActionBar_Title);
+            TextView label;
+            if (convertView instanceof TextView) {
+                label = (TextView) convertView;
             } else {
-                label.setTextAppearance(Term.this, android.R.style.TextAppearance_Medium);
+                label = new TextView(Term.this);
+                if (AndroidCompat.SDK >= 13) {
+                    label.setTextAppearance(Term.this, TextAppearance_Holo_Widget_ActionBar_Title);
+                } else {
+                    label.setTextAppearance(Term.this, android.R.style.TextAppearance_Medium);
+                }
             }
+            bindLabel(label, position);
             return label;
         }
 
@@ -207,7 +231,7 @@ public class Term extends Activity implements UpdateCallback {
         }
 
         public void onUpdate() {
-            notifyDataSetChanged();
+            super.onUpdate();
             mActionBar.setSelectedNavigationItem(mViewFlipper.getDisplayedChild());
         }
     }
@@ -412,29 +436,32 @@ public class Term extends Activity implements UpdateCallback {
             String[] mArgs = this.getIntent().getStringArrayExtra("PYTHONARGS");
 
             if (mArgs != null) {
-                mTermSessions.add(createPyTermSession(mArgs));
+                requestPyTermSession(mArgs, true);
 
             } else {
                 mArgs = this.getIntent().getStringArrayExtra("ARGS");
                 if (mArgs != null) {
-                    mTermSessions.add(createPyTermSession(mArgs));
+                    requestPyTermSession(mArgs, true);
 
                 } else {
-
-                    if (mTermSessions.size() == 0) {
-                        mTermSessions.add(createPyTermSession(mArgs));
-                    }
+                    // Windows from before a restart may still be on their way
+                    final TermService service = mTermService;
+                    service.runWhenRestored(new Runnable() {
+                        public void run() {
+                            if (mTermService == service && service.getSessions().size() == 0) {
+                                requestPyTermSession(null, true);
+                            }
+                        }
+                    });
                 }
             }
 
-            for (TermSession session : mTermSessions) {
-                EmulatorView view = createEmulatorView(session);
-                mViewFlipper.addView(view);
-
-            }
+            // Sessions still being started get their views when they're ready
+            mViewFlipper.setSessions(mTermSessions, mViewFactory);
 
 
             updatePrefs();
+            mTermService.updateSettings(mSettings);
 
             Intent intent = getIntent();
             int flags = intent.getFlags();
@@ -449,11 +476,6 @@ public class Term extends Activity implements UpdateCallback {
                         mViewFlipper.setDisplayedChild(target);
                     }
                 }
-            } else {
-                if (mArgs != null) {
-                    mViewFlipper.setDisplayedChild(mTermSessions.size() - 1);
-
-                }
             }
 
             mViewFlipper.resumeCurrentView();
@@ -491,6 +513,18 @@ public class Term extends Activity implements UpdateCallback {
         //this.unbindService(connection);
 
         mViewFlipper.removeAllViews();
+        if (mPasteJob != null) {
+            mPasteJob.cancel();
+            mPasteProgress.dismiss();
+        }
+        if (mExporter != null) {
+            mExporter.cancel();
+            mExportProgress.dismiss();
+        }
+        if (mSearch != null) {
+            mSearch.close();
+            mSearch = null;
+        }
         unbindService(mTSConnection);
         if (mStopServiceOnFinish) {
             stopService(TSIntent);
@@ -532,14 +566,18 @@ public class Term extends Activity implements UpdateCallback {
         return session;
     }
 
+    /**
+     * Start a Python (or Lua) session in the background.  Its window is
+     * added when the shell is up.
+     *
+     * @param select Whether to switch to the new window.
+     */
     @SuppressLint("NewApi")
-    private TermSession createPyTermSession(String[] mArgs) {
-        TermSettings settings = mSettings;
-        TermSession session;
+    private void requestPyTermSession(String[] mArgs, boolean select) {
         String code = NAction.getCode(getApplicationContext());
         String scmd = "";
 
-        Log.d(TAG, "createPyTermSession:(code)"+code);
+        Log.d(TAG, "requestPyTermSession:(code)"+code);
 
         if (code.startsWith("qlua")) {
             scmd = NUtil.is64Bit() ? getApplicationContext().getFilesDir() + "/bin/lua5-64" : getApplicationContext().getFilesDir() + "/bin/lua5";
@@ -547,14 +585,14 @@ public class Term extends Activity implements UpdateCallback {
             if (mArgs == null) {
                 //settings.setShell(scmd);
                 //scmd = "";
-                session = createTermSession(this, settings, scmd, "");
+                requestTermSession(scmd, "", select);
             } else {
-                Log.d(TAG, "createPyTermSession（scmd）:"+scmd+":margs0:"+mArgs[0]);
+                Log.d(TAG, "requestPyTermSession（scmd）:"+scmd+":margs0:"+mArgs[0]);
                 //String content = FileHelper.getFileContents(mArgs[0]);
                 String cmd = scmd + " " + mArgs[0] + "";
                 //settings.setShell(cmd);
 
-                session = createTermSession(this, settings, cmd, mArgs[1]);
+                requestTermSession(cmd, mArgs[1], select);
                 mArgs = null;
             }
 
@@ -577,7 +615,7 @@ public class Term extends Activity implements UpdateCallback {
                     scmd = isRootEnable ? getApplicationContext().getFilesDir() + "/bin/qpython3-root.sh && exit" : getApplicationContext().getFilesDir() + "/bin/qpython3.sh && exit";
 
                 }
-                session = createTermSession(this, settings, scmd, "");
+                requestTermSession(scmd, "", select);
 
             } else {
 
@@ -585,14 +623,74 @@ public class Term extends Activity implements UpdateCallback {
                 for (int i = 0; i < mArgs.length - 1; i++) {
                     cm += " " + StringUtils.addSlashes(mArgs[i]) + " ";
                 }
-                session = createTermSession(this, settings, scmd + " " + cm + " && exit", mArgs[1]);
+                requestTermSession(scmd + " " + cm + " && exit", mArgs[1], select);
 
             }
         }
-        session.setFinishCallback(mTermService);
-        return session;
     }
 
+    private void requestTermSession(String initialCommand, String path, boolean select) {
+        TermService service = mTermService;
+        if (service == null) {
+            Log.w(TermDebug.LOG_TAG, "Couldn't create new session because mTermService == null");
+            return;
+        }
+        service.getSessionFactory().createSession(mSettings, initialCommand, path, null,
+                new SessionAttacher(service, select));
+    }
+
+    /**
+     * Adds a newly started session to the service's list.  The window for it
+     * is created by onUpdate(), or by populateViewFlipper() if this activity
+     * has gone away in the meantime.
+     */
+    private class SessionAttacher implements SessionFactory.Callback {
+        private final TermService mService;
+        private final boolean mSelect;
+
+        SessionAttacher(TermService service, boolean select) {
+            mService = service;
+            mSelect = select;
+        }
+
+        public void onSessionReady(ShellTermSession session) {
+            SessionList sessions = mService.getSessions();
+            if (!sessions.contains(session)) {
+                // XXX We should really be able to fetch this from within TermSession
+                session.setProcessExitMessage(mService.getString(R.string.process_exit_message));
+                session.setFinishCallback(mService);
+                sessions.add(session);
+            }
+
+            if (sessions != mTermSessions || isFinishing()) {
+                return;
+            }
+            mViewFlipper.sync();
+            if (mSelect) {
+                int position = sessions.indexOf(session);
+                if (position >= 0) {
+                    mViewFlipper.setDisplayedChild(position);
+                }
+            }
+        }
+
+        public void onSessionFailed() {
+            if (mService.getSessions() == mTermSessions && !isFinishing()) {
+                Toast.makeText(Term.this, R.string.session_failed, Toast.LENGTH_LONG).show();
+            }
+        }
+    }
+
+    /* Views are made for windows as the user comes near them; see
+       TermViewFlipper */
+    private final TermViewFlipper.ViewFactory mViewFactory = new TermViewFlipper.ViewFactory() {
+        public EmulatorView createView(TermSession session) {
+            TermView view = createEmulatorView(session);
+            view.updatePrefs(mSettings);
+            return view;
+        }
+    };
+
     private TermView createEmulatorView(TermSession session) {
         DisplayMetrics metrics = new DisplayMetrics();
         getWindowManager().getDefaultDisplay().getMetrics(metrics);
@@ -671,20 +769,15 @@ public class Term extends Activity implements UpdateCallback {
                 viewFlipper.addCallback(adapter);
             }
         }
-        if (sessions != null && sessions.size() < viewFlipper.getChildCount()) {
-            for (int i = 0; i < viewFlipper.getChildCount(); ++i) {
-                EmulatorView v = (EmulatorView) viewFlipper.getChildAt(i);
-                if (!sessions.contains(v.getTermSession())) {
-                    v.onPause();
-                    viewFlipper.removeView(v);
-                    --i;
-                }
-            }
-        }
+        // Sessions that were started or closed while we were paused
+        viewFlipper.sync();
 
         mPrefs = PreferenceManager.getDefaultSharedPreferences(this);
         mSettings.readPrefs(mPrefs);
         updatePrefs();
+        if (mTermService != null && mPendingPathBroadcasts <= 0) {
+            mTermService.updateSettings(mSettings);
+        }
 
         if (onResumeSelectWindow >= 0) {
             viewFlipper.setDisplayedChild(onResumeSelectWindow);
@@ -818,6 +911,8 @@ public class Term extends Activity implements UpdateCallback {
             doToggleWakeLock();
         } else if (id == R.id.menu_toggle_wifilock) {
             doToggleWifiLock();
+        } else if (id == R.id.menu_toggle_log) {
+            doToggleLog();
         } else if (id == ActionBarCompat.ID_HOME) {
             closeWindow();
         } else if (id == R.id.menu_select_text) {
@@ -826,6 +921,12 @@ public class Term extends Activity implements UpdateCallback {
         } else if (id == R.id.menu_copy_all) {
             doCopyAll();
 
+        } else if (id == R.id.menu_export_transcript) {
+            doExportTranscript();
+
+        } else if (id == R.id.menu_find) {
+            doFind();
+
         } else if (id == R.id.menu_paste) {
             doPaste();
 
@@ -852,14 +953,8 @@ public class Term extends Activity implements UpdateCallback {
             return;
         }
 
-        TermSession session = createPyTermSession(null);
-        mTermSessions.add(session);
-
-        TermView view = createEmulatorView(session);
-        view.updatePrefs(mSettings);
-
-        mViewFlipper.addView(view);
-        mViewFlipper.setDisplayedChild(mViewFlipper.getChildCount() - 1);
+        // The window is added and shown once the shell is up
+        requestPyTermSession(null, true);
     }
 
     private void confirmCloseWindow() {
@@ -914,12 +1009,12 @@ public class Term extends Activity implements UpdateCallback {
         TermSession session = mTermSessions.remove(mViewFlipper.getDisplayedChild());
         view.onPause();
         session.finish();
-        mViewFlipper.removeView(view);
         if (mTermSessions.size() == 0) {
             mStopServiceOnFinish = true;
             finish();
         } else {
-            mViewFlipper.showNext();
+            // Shows the window that took this one's place
+            mViewFlipper.sync();
         }
     }
 
@@ -934,7 +1029,6 @@ public class Term extends Activity implements UpdateCallback {
                         onResumeSelectWindow = position;
                     } else if (position == -1) {
                         doCreateNewWindow();
-                        onResumeSelectWindow = mTermSessions.size() - 1;
                     }
                 } else {
                     // Close the activity if user closed all sessions
@@ -944,6 +1038,11 @@ public class Term extends Activity implements UpdateCallback {
                     }
                 }
                 break;
+            case REQUEST_EXPORT_TRANSCRIPT:
+                if (result == RESULT_OK && data != null && data.getData() != null) {
+                    exportToUri(data.getData());
+                }
+                break;
         }
     }
 
@@ -966,13 +1065,8 @@ public class Term extends Activity implements UpdateCallback {
                 // Presumably populateViewFlipper() will do this later ...
                 return;
             }
-            int position = sessions.size() - 1;
-
-            TermSession session = sessions.get(position);
-            EmulatorView view = createEmulatorView(session);
-
-            mViewFlipper.addView(view);
-            onResumeSelectWindow = position;
+            mViewFlipper.sync();
+            onResumeSelectWindow = sessions.size() - 1;
         } else if (action.equals(RemoteInterface.PRIVACT_SWITCH_WINDOW)) {
             int target = intent.getIntExtra(RemoteInterface.PRIVEXTRA_TARGET_WINDOW, -1);
             if (target >= 0) {
@@ -995,6 +1089,13 @@ public class Term extends Activity implements UpdateCallback {
         } else {
             wifiLockItem.setTitle(R.string.enable_wifilock);
         }
+        MenuItem logItem = menu.findItem(R.id.menu_toggle_log);
+        TermSession session = getCurrentTermSession();
+        if (session instanceof ShellTermSession && ((ShellTermSession) session).getLogFile() != null) {
+            logItem.setTitle(R.string.stop_log);
+        } else {
+            logItem.setTitle(R.string.start_log);
+        }
         return super.onPrepareOptionsMenu(menu);
     }
 
@@ -1204,15 +1305,8 @@ public class Term extends Activity implements UpdateCallback {
         if (sessions.size() == 0) {
             mStopServiceOnFinish = true;
             finish();
-        } else if (sessions.size() < mViewFlipper.getChildCount()) {
-            for (int i = 0; i < mViewFlipper.getChildCount(); ++i) {
-                EmulatorView v = (EmulatorView) mViewFlipper.getChildAt(i);
-                if (!sessions.contains(v.getTermSession())) {
-                    v.onPause();
-                    mViewFlipper.removeView(v);
-                    --i;
-                }
-            }
+        } else {
+            mViewFlipper.sync();
         }
     }
 
@@ -1236,33 +1330,188 @@ public class Term extends Activity implements UpdateCallback {
     }
 
     private void doEmailTranscript() {
-        TermSession session = getCurrentTermSession();
-        if (session != null) {
-            // Don't really want to supply an address, but
-            // currently it's required, otherwise nobody
-            // wants to handle the intent.
-            String addr = "support@qpython.org";
-            Intent intent =
-                    new Intent(Intent.ACTION_SENDTO, Uri.parse("mailto:"
-                            + addr));
-
-            String subject = getString(R.string.email_transcript_subject);
-            String title = session.getTitle();
-            if (title != null) {
-                subject = subject + " - " + title;
+        final TermSession session = getCurrentTermSession();
+        if (session == null || mExporter != null) {
+            return;
+        }
+        // Attached as a file rather than put in EXTRA_TEXT, which fails for
+        // transcripts bigger than a binder transaction
+        File dir = new File(getCacheDir(), TRANSCRIPT_CACHE_DIR);
+        deleteOldTranscripts(dir);
+        final File file = new File(dir, "transcript-" + System.currentTimeMillis() + ".txt");
+        OutputStream out;
+        try {
+            dir.mkdirs();
+            out = new FileOutputStream(file);
+        } catch (IOException e) {
+            Log.e(TermDebug.LOG_TAG, "Couldn't create " + file, e);
+            Toast.makeText(this, R.string.export_failed, Toast.LENGTH_LONG).show();
+            return;
+        }
+        startExport(session, out, TranscriptExporter.FORMAT_TEXT, new Runnable() {
+            public void run() {
+                // Don't really want to supply an address, but
+                // currently it's required, otherwise nobody
+                // wants to handle the intent.
+                String addr = "support@qpython.org";
+                Intent intent = new Intent(Intent.ACTION_SEND);
+                intent.setType("text/plain");
+                intent.putExtra(Intent.EXTRA_EMAIL, new String[] { addr });
+
+                String subject = getString(R.string.email_transcript_subject);
+                String title = session.getTitle();
+                if (title != null) {
+                    subject = subject + " - " + title;
+                }
+                intent.putExtra(Intent.EXTRA_SUBJECT, subject);
+                // file:// URIs can't be shared from API 24, so go through our FileProvider
+                Uri uri = FileProvider.getUriForFile(Term.this,
+                        getPackageName() + TRANSCRIPT_PROVIDER_SUFFIX, file);
+                intent.putExtra(Intent.EXTRA_STREAM, uri);
+                intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+                try {
+                    startActivity(Intent.createChooser(intent,
+                            getString(R.string.email_transcript_chooser_title)));
+                } catch (ActivityNotFoundException e) {
+                    Toast.makeText(Term.this,
+                            R.string.email_transcript_no_email_activity_found,
+                            Toast.LENGTH_LONG).show();
+                }
+            }
+        });
+    }
+
+    /* Emailed transcripts stay until the mail app is surely done with them */
+    private static void deleteOldTranscripts(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        long cutoff = System.currentTimeMillis() - TRANSCRIPT_CACHE_TIME;
+        for (File file : files) {
+            if (file.lastModified() < cutoff) {
+                file.delete();
             }
-            intent.putExtra(Intent.EXTRA_SUBJECT, subject);
-            intent.putExtra(Intent.EXTRA_TEXT,
-                    session.getTranscriptText().trim());
+        }
+    }
+
+    private void doExportTranscript() {
+        if (getCurrentTermSession() == null || mExporter != null) {
+            return;
+        }
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.export_format_title)
+                .setItems(R.array.export_formats, new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int which) {
+                        chooseExportTarget(which);
+                    }
+                })
+                .show();
+    }
+
+    /* Ask for a document to export to where there's a picker; otherwise
+       export to a new file next to the session logs */
+    private void chooseExportTarget(int format) {
+        String name = "transcript-" + System.currentTimeMillis()
+                + TranscriptExporter.getExtension(format);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            mExportFormat = format;
+            Intent intent = new Intent(Intent.ACTION_CREATE_DOCUMENT);
+            intent.addCategory(Intent.CATEGORY_OPENABLE);
+            intent.setType(TranscriptExporter.getMimeType(format));
+            intent.putExtra(Intent.EXTRA_TITLE, name);
             try {
-                startActivity(Intent.createChooser(intent,
-                        getString(R.string.email_transcript_chooser_title)));
+                startActivityForResult(intent, REQUEST_EXPORT_TRANSCRIPT);
+                return;
             } catch (ActivityNotFoundException e) {
-                Toast.makeText(this,
-                        R.string.email_transcript_no_email_activity_found,
+                // Fall back to a file
+            }
+        }
+
+        final File file = new File(ShellTermSession.getLogDirectory(), name);
+        OutputStream out;
+        try {
+            file.getParentFile().mkdirs();
+            out = new FileOutputStream(file);
+        } catch (IOException e) {
+            Log.e(TermDebug.LOG_TAG, "Couldn't create " + file, e);
+            Toast.makeText(this, R.string.export_failed, Toast.LENGTH_LONG).show();
+            return;
+        }
+        startExport(getCurrentTermSession(), out, format, new Runnable() {
+            public void run() {
+                Toast.makeText(Term.this, getString(R.string.export_saved, file.getPath()),
                         Toast.LENGTH_LONG).show();
             }
+        });
+    }
+
+    private void exportToUri(Uri uri) {
+        TermSession session = getCurrentTermSession();
+        if (session == null || mExporter != null) {
+            return;
         }
+        OutputStream out;
+        try {
+            out = getContentResolver().openOutputStream(uri);
+        } catch (IOException e) {
+            out = null;
+        }
+        if (out == null) {
+            Log.e(TermDebug.LOG_TAG, "Couldn't open " + uri);
+            Toast.makeText(this, R.string.export_failed, Toast.LENGTH_LONG).show();
+            return;
+        }
+        startExport(session, out, mExportFormat, new Runnable() {
+            public void run() {
+                Toast.makeText(Term.this, R.string.export_done, Toast.LENGTH_SHORT).show();
+            }
+        });
+    }
+
+    /**
+     * Export session's transcript to out, showing progress, and run
+     * onSuccess on the main thread once it's all written.
+     */
+    private void startExport(TermSession session, OutputStream out, int format,
+            final Runnable onSuccess) {
+        final ProgressDialog progress = new ProgressDialog(this);
+        progress.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+        progress.setMessage(getString(R.string.export_progress));
+        // ProgressDialog counts in ints, so this is in tenths of a percent
+        progress.setMax(1000);
+        progress.setCancelable(false);
+        final TranscriptExporter exporter = new TranscriptExporter(session, out, format,
+                mSettings.getColorScheme(), new TranscriptExporter.Listener() {
+            public void onExportProgress(long charsDone, long charsTotal) {
+                if (charsTotal > 0) {
+                    progress.setProgress((int) (charsDone * 1000 / charsTotal));
+                }
+            }
+
+            public void onExportFinished(boolean cancelled, IOException error) {
+                progress.dismiss();
+                mExporter = null;
+                mExportProgress = null;
+                if (cancelled) {
+                    Toast.makeText(Term.this, R.string.export_cancelled, Toast.LENGTH_SHORT).show();
+                } else if (error != null) {
+                    Toast.makeText(Term.this, R.string.export_failed, Toast.LENGTH_LONG).show();
+                } else {
+                    onSuccess.run();
+                }
+            }
+        });
+        progress.setButton(DialogInterface.BUTTON_NEGATIVE, getString(android.R.string.cancel),
+                new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int which) {
+                        exporter.cancel();
+                    }
+                });
+        mExporter = exporter;
+        mExportProgress = progress;
+        progress.show();
+        exporter.start();
     }
 
     private void doCopyAll() {
@@ -1275,16 +1524,117 @@ public class Term extends Activity implements UpdateCallback {
         ClipboardManager clip = (ClipboardManager)
                 getSystemService(Context.CLIPBOARD_SERVICE);
         CharSequence paste = clip.getText();
-        byte[] utf8;
-        if (paste != null) {
-            try {
-                utf8 = paste.toString().getBytes("UTF-8");
-            } catch (UnsupportedEncodingException e) {
-                Log.e(TermDebug.LOG_TAG, "UTF-8 encoding not found.");
-                return;
+        TermSession session = getCurrentTermSession();
+        if (paste == null || session == null || mPasteJob != null) {
+            return;
+        }
+        boolean bracketed = mSettings.useBracketedPaste();
+        if (paste.length() < PasteJob.MIN_PACED_LENGTH) {
+            session.write(bracketed ? "\033[200~" + paste + "\033[201~" : paste.toString());
+            return;
+        }
+
+        // Big pastes are fed in gradually so the shell doesn't drop any
+        final ProgressDialog progress = new ProgressDialog(this);
+        progress.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+        progress.setMessage(getString(R.string.paste_progress));
+        progress.setMax(paste.length());
+        progress.setCancelable(false);
+        final PasteJob job = new PasteJob(session, paste, bracketed, new PasteJob.Listener() {
+            public void onPasteProgress(int charsDone, int charsTotal) {
+                progress.setProgress(charsDone);
             }
-            getCurrentTermSession().write(paste.toString());
+
+            public void onPasteFinished(boolean cancelled) {
+                progress.dismiss();
+                mPasteJob = null;
+                mPasteProgress = null;
+                if (cancelled) {
+                    Toast.makeText(Term.this, R.string.paste_cancelled, Toast.LENGTH_SHORT).show();
+                }
+            }
+        });
+        progress.setButton(DialogInterface.BUTTON_NEGATIVE, getString(android.R.string.cancel),
+                new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int which) {
+                        job.cancel();
+                    }
+                });
+        mPasteJob = job;
+        mPasteProgress = progress;
+        progress.show();
+        job.start();
+    }
+
+    private void doFind() {
+        final TermSession session = getCurrentTermSession();
+        if (session == null) {
+            return;
         }
+        final View view = getLayoutInflater().inflate(R.layout.find_dialog, null, false);
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.find)
+                .setView(view)
+                .setPositiveButton(R.string.find, new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int which) {
+                        String text = ((EditText) view.findViewById(R.id.find_text)).getText().toString();
+                        boolean regex = ((CheckBox) view.findViewById(R.id.find_regex)).isChecked();
+                        boolean matchCase = ((CheckBox) view.findViewById(R.id.find_match_case)).isChecked();
+                        if (text.length() == 0) {
+                            return;
+                        }
+                        if (mSearch != null) {
+                            mSearch.close();
+                        }
+                        try {
+                            mSearch = new ScrollbackSearch(session, text, regex, !matchCase);
+                        } catch (PatternSyntaxException e) {
+                            mSearch = null;
+                            Toast.makeText(Term.this, getString(R.string.find_bad_regex, e.getDescription()),
+                                    Toast.LENGTH_LONG).show();
+                            return;
+                        }
+                        findNext(false);
+                    }
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
+
+    /* Show the next match of the current search, older or newer than the
+       one shown last */
+    private void findNext(boolean forward) {
+        final ScrollbackSearch search = mSearch;
+        if (search == null) {
+            return;
+        }
+        search.find(forward, new ScrollbackSearch.Listener() {
+            public void onFound(long line, String text) {
+                if (mSearch != search) {
+                    // Replaced, or the activity is gone
+                    return;
+                }
+                if (line < 0) {
+                    Toast.makeText(Term.this, R.string.find_no_more, Toast.LENGTH_SHORT).show();
+                    return;
+                }
+                new AlertDialog.Builder(Term.this)
+                        .setTitle(getString(R.string.find_result_title, line + 1))
+                        .setMessage(text)
+                        .setPositiveButton(R.string.find_older, new DialogInterface.OnClickListener() {
+                            public void onClick(DialogInterface dialog, int which) {
+                                findNext(false);
+                            }
+                        })
+                        .setNeutralButton(R.string.find_newer, new DialogInterface.OnClickListener() {
+                            public void onClick(DialogInterface dialog, int which) {
+                                findNext(true);
+                            }
+                        })
+                        .setNegativeButton(android.R.string.ok, null)
+                        .show();
+            }
+        });
     }
 
     private void doSendControlKey() {
@@ -1370,6 +1720,30 @@ public class Term extends Activity implements UpdateCallback {
         ActivityCompat.invalidateOptionsMenu(this);
     }
 
+    private void doToggleLog() {
+        TermSession current = getCurrentTermSession();
+        if (!(current instanceof ShellTermSession)) {
+            return;
+        }
+        ShellTermSession session = (ShellTermSession) current;
+        File file = session.getLogFile();
+        if (file != null) {
+            session.stopLog();
+            Toast.makeText(this, getString(R.string.log_stopped, file.getPath()),
+                    Toast.LENGTH_LONG).show();
+        } else {
+            try {
+                file = session.startLog(null);
+                Toast.makeText(this, getString(R.string.log_started, file.getPath()),
+                        Toast.LENGTH_LONG).show();
+            } catch (IOException e) {
+                Log.e(TermDebug.LOG_TAG, "Couldn't start session log", e);
+                Toast.makeText(this, R.string.log_failed, Toast.LENGTH_LONG).show();
+            }
+        }
+        ActivityCompat.invalidateOptionsMenu(this);
+    }
+
     private void doToggleActionBar() {
         ActionBarCompat bar = mActionBar;
         if (bar == null) {
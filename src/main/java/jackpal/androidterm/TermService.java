@@ -18,18 +18,28 @@ package jackpal.androidterm;
 
 import android.app.Service;
 import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
 import android.content.Intent;
+import android.preference.PreferenceManager;
 import android.util.Log;
 import android.app.Notification;
 import android.app.PendingIntent;
 
 import com.quseit.util.NAction;
 
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
 import jackpal.androidterm.emulatorview.TermSession;
 
 import jackpal.androidterm.compat.ServiceForegroundCompat;
 import jackpal.androidterm.util.SessionList;
+import jackpal.androidterm.util.TermSettings;
 
 public class TermService extends Service implements TermSession.FinishCallback
 {
@@ -40,6 +50,43 @@ public class TermService extends Service implements TermSession.FinishCallback
     private ServiceForegroundCompat compat;
 
     private SessionList mTermSessions;
+    private SessionFactory mSessionFactory;
+    private SessionPool mSessionPool;
+    // Listening while the control_socket setting is on; see ControlServer
+    private ControlServer mControlServer;
+
+    /* Background windows idle for longer than the hibernate_timeout setting,
+       or for HIBERNATE_MIN_IDLE once the heap is fuller than
+       hibernate_heap_threshold, have their screen and scrollback moved to a
+       compressed file in HIBERNATE_DIR.  See ShellTermSession.hibernate(). */
+    private static final String HIBERNATE_DIR = "hibernate";
+    private static final long HIBERNATE_CHECK_INTERVAL = 60 * 1000;
+    private static final long HIBERNATE_MIN_IDLE = 60 * 1000;
+    private final Handler mHandler = new Handler();
+
+    /* Every CHECKPOINT_INTERVAL, and when the system asks us to trim memory,
+       sessions that changed are saved to CHECKPOINT_DIR; when the process is
+       restarted after being killed, their windows are restored from there.
+       See SessionCheckpoint. */
+    private static final String CHECKPOINT_DIR = "checkpoint";
+    private static final long CHECKPOINT_INTERVAL = 30 * 1000;
+    private SessionCheckpoint mCheckpoints;
+    // Restored sessions whose shells are still starting
+    private int mRestoring;
+    private final ArrayList<Runnable> mRestoreListeners = new ArrayList<Runnable>();
+    private final Runnable mCheckpointTask = new Runnable() {
+        public void run() {
+            mCheckpoints.save(mTermSessions);
+            mHandler.postDelayed(this, CHECKPOINT_INTERVAL);
+        }
+    };
+
+    private final Runnable mHibernateCheck = new Runnable() {
+        public void run() {
+            hibernateIdleSessions();
+            mHandler.postDelayed(this, HIBERNATE_CHECK_INTERVAL);
+        }
+    };
 
     public class TSBinder extends Binder {
         TermService getService() {
@@ -68,6 +115,24 @@ public class TermService extends Service implements TermSession.FinishCallback
     public void onCreate() {
         compat = new ServiceForegroundCompat(this);
         mTermSessions = new SessionList();
+        mSessionFactory = new SessionFactory(this);
+        mSessionPool = new SessionPool(mSessionFactory);
+        mSessionFactory.setPool(mSessionPool);
+
+        // Left over from a previous process; their shells are gone
+        File[] stale = getHibernateDir().listFiles();
+        if (stale != null) {
+            for (File file : stale) {
+                file.delete();
+            }
+        }
+        mHandler.postDelayed(mHibernateCheck, HIBERNATE_CHECK_INTERVAL);
+
+        mCheckpoints = new SessionCheckpoint(new File(getFilesDir(), CHECKPOINT_DIR));
+        if (mCheckpoints.hasSavedSessions()) {
+            restoreSessions();
+        }
+        mHandler.postDelayed(mCheckpointTask, CHECKPOINT_INTERVAL);
 
         /* Put the service in the foreground. */
         Intent notifyIntent = new Intent(this, Term.class);
@@ -85,6 +150,16 @@ public class TermService extends Service implements TermSession.FinishCallback
     @Override
     public void onDestroy() {
         compat.stopForeground(true);
+        mHandler.removeCallbacks(mHibernateCheck);
+        mHandler.removeCallbacks(mCheckpointTask);
+        // Stopped on purpose, so there's nothing to restore next time
+        mCheckpoints.shutdown();
+        if (mControlServer != null) {
+            mControlServer.stop();
+            mControlServer = null;
+        }
+        mSessionPool.drain();
+        mSessionFactory.shutdown();
         for (TermSession session : mTermSessions) {
             /* Don't automatically remove from list of sessions -- we clear the
              * list below anyway and we could trigger
@@ -100,7 +175,198 @@ public class TermService extends Service implements TermSession.FinishCallback
         return mTermSessions;
     }
 
+    /**
+     * Run task on the main thread once the windows from before the process
+     * was restarted are all in the session list (or have failed to start),
+     * or now if none are coming.
+     */
+    public void runWhenRestored(Runnable task) {
+        if (mRestoring > 0) {
+            mRestoreListeners.add(task);
+        } else {
+            task.run();
+        }
+    }
+
+    private void onRestoreStepDone() {
+        if (--mRestoring > 0) {
+            return;
+        }
+        ArrayList<Runnable> listeners = new ArrayList<Runnable>(mRestoreListeners);
+        mRestoreListeners.clear();
+        for (Runnable listener : listeners) {
+            listener.run();
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        // We may be killed soon
+        mCheckpoints.save(mTermSessions);
+    }
+
+    /* Give each session saved by the last process a new shell, in its old
+       order, with the old output shown above the prompt */
+    private void restoreSessions() {
+        // Counted until the checkpoints are read, so no default window is opened meanwhile
+        mRestoring++;
+        mCheckpoints.restore(new SessionCheckpoint.RestoreCallback() {
+            public void onRestored(List<SessionCheckpoint.Restored> sessions) {
+                TermSettings settings = new TermSettings(getResources(),
+                        PreferenceManager.getDefaultSharedPreferences(TermService.this));
+                for (final SessionCheckpoint.Restored restored : sessions) {
+                    mRestoring++;
+                    mSessionFactory.createUnsharedSession(settings, restored.pyPath, restored.handle,
+                            new SessionFactory.Callback() {
+                                public void onSessionReady(ShellTermSession session) {
+                                    session.restoreCheckpoint(restored);
+                                    mCheckpoints.adopt(session, restored);
+                                    session.setProcessExitMessage(getString(R.string.process_exit_message));
+                                    session.setFinishCallback(TermService.this);
+                                    mTermSessions.add(session);
+                                    onRestoreStepDone();
+                                }
+
+                                public void onSessionFailed() {
+                                    mCheckpoints.discard(restored);
+                                    onRestoreStepDone();
+                                }
+                            });
+                }
+                onRestoreStepDone();
+            }
+        });
+    }
+
+    /**
+     * Apply settings that concern the service rather than a window: the
+     * pool of idle shells, and whether the control socket is open.
+     */
+    public void updateSettings(TermSettings settings) {
+        mSessionPool.updateSettings(settings);
+        if (settings.useControlSocket()) {
+            if (mControlServer == null) {
+                ControlServer server = new ControlServer(this, settings);
+                try {
+                    server.start();
+                    mControlServer = server;
+                } catch (IOException e) {
+                    Log.e(TermDebug.LOG_TAG, "Could not open control socket", e);
+                }
+            } else {
+                mControlServer.setSettings(settings);
+            }
+        } else if (mControlServer != null) {
+            mControlServer.stop();
+            mControlServer = null;
+        }
+    }
+
+    /**
+     * Idle shells started ahead of time for new windows.  The pool starts
+     * filling once a client hands it settings with updateSettings().
+     */
+    public SessionPool getSessionPool() {
+        return mSessionPool;
+    }
+
+    /**
+     * Starts new sessions off the main thread.
+     */
+    public SessionFactory getSessionFactory() {
+        return mSessionFactory;
+    }
+
+    private File getHibernateDir() {
+        return new File(getFilesDir(), HIBERNATE_DIR);
+    }
+
+    private void hibernateIdleSessions() {
+        TermSettings settings = new TermSettings(getResources(),
+                PreferenceManager.getDefaultSharedPreferences(this));
+        long timeout = settings.getHibernateTimeout() * 60 * 1000L;
+        int heapThreshold = settings.getHibernateHeapThreshold();
+
+        Runtime runtime = Runtime.getRuntime();
+        long used = runtime.totalMemory() - runtime.freeMemory();
+        boolean memoryLow = heapThreshold > 0 && used * 100 / runtime.maxMemory() >= heapThreshold;
+        if (timeout == 0 && !memoryLow) {
+            return;
+        }
+
+        for (int i = 0; i < mTermSessions.size(); ++i) {
+            TermSession s = mTermSessions.get(i);
+            if (!(s instanceof ShellTermSession)) {
+                continue;
+            }
+            ShellTermSession session = (ShellTermSession) s;
+            // Headless and hibernated sessions have no emulator to free
+            if (!session.isRunning() || session.isForeground()) {
+                continue;
+            }
+            long idle = session.getIdleTime();
+            if ((timeout > 0 && idle >= timeout) || (memoryLow && idle >= HIBERNATE_MIN_IDLE)) {
+                hibernate(i, session);
+            }
+        }
+    }
+
+    private void hibernate(int index, ShellTermSession session) {
+        File file = null;
+        try {
+            File dir = getHibernateDir();
+            dir.mkdirs();
+            file = File.createTempFile("session", ".gz", dir);
+            ShellTermSession successor = session.hibernate(file);
+            if (successor != null) {
+                mTermSessions.set(index, successor);
+                Log.d(TermDebug.LOG_TAG, "Hibernated window " + (index + 1) + " to " + file);
+            } else {
+                file.delete();
+            }
+        } catch (IOException e) {
+            Log.e(TermDebug.LOG_TAG, "Couldn't hibernate window " + (index + 1), e);
+            if (file != null) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Copies of every session's I/O counters, in window order.  May be
+     * called on any thread.
+     */
+    ArrayList<SessionMetrics.Snapshot> getMetricsSnapshots() {
+        ArrayList<SessionMetrics.Snapshot> snapshots = new ArrayList<SessionMetrics.Snapshot>();
+        // toArray() doesn't fail if the main thread changes the list meanwhile
+        TermSession[] sessions = mTermSessions.toArray(new TermSession[0]);
+        for (int i = 0; i < sessions.length; ++i) {
+            if (sessions[i] instanceof ShellTermSession) {
+                snapshots.add(((ShellTermSession) sessions[i]).getMetricsSnapshot(
+                        getString(R.string.window_title, i + 1)));
+            }
+        }
+        return snapshots;
+    }
+
+    /**
+     * Report session I/O counters and cache statistics for
+     * "adb shell dumpsys activity service TermService".
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        ArrayList<SessionMetrics.Snapshot> snapshots = getMetricsSnapshots();
+        writer.println("Sessions: " + snapshots.size());
+        for (SessionMetrics.Snapshot snapshot : snapshots) {
+            snapshot.dump(writer, "  ");
+        }
+        writer.println("Pre-started shells: " + mSessionPool.getIdleCount());
+        writer.println("PATH cache: " + PathCache.getHits() + " hits, "
+                + PathCache.getMisses() + " misses");
+    }
+
     public void onSessionFinish(TermSession session) {
+        mCheckpoints.remove(session);
         mTermSessions.remove(session);
     }
 }
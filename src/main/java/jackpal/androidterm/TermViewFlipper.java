@@ -26,16 +26,53 @@ import android.view.View;
 import android.widget.Toast;
 import android.widget.ViewFlipper;
 
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.Map;
 
 import jackpal.androidterm.compat.AndroidCompat;
 import jackpal.androidterm.emulatorview.EmulatorView;
 import jackpal.androidterm.emulatorview.TermSession;
 import jackpal.androidterm.emulatorview.UpdateCallback;
+import jackpal.androidterm.util.SessionList;
 import jackpal.androidterm.util.TermSettings;
 
+/**
+ * Shows one window of a SessionList at a time.
+ * <p>
+ * Only the displayed window and its {@link #NEIGHBORS} on each side (the
+ * ones showNext() and showPrevious() go to) have views; the others get
+ * theirs from the {@link ViewFactory} when they come near the displayed
+ * one, and lose them again when they move away.  Positions, as in
+ * getDisplayedChild() and setDisplayedChild(), are positions in the
+ * session list, not among the child views.  Iterating over the flipper
+ * visits the views that exist.
+ */
 public class TermViewFlipper extends ViewFlipper implements Iterable<View> {
+    /**
+     * Makes the view for a session when it needs one.
+     */
+    public interface ViewFactory {
+        EmulatorView createView(TermSession session);
+    }
+
+    /* How many windows on each side of the displayed one keep their views */
+    private static final int NEIGHBORS = 1;
+
+    private static final TermSession[] NO_SESSIONS = new TermSession[0];
+
+    private SessionList mSessions;
+    private ViewFactory mViewFactory;
+    private final IdentityHashMap<TermSession, EmulatorView> mViews =
+            new IdentityHashMap<TermSession, EmulatorView>();
+    private int mDisplayed;
+    private TermSession mDisplayedSession;
+    private boolean mResumed;
+    /* Set while views are added and removed, when ViewAnimator calls
+       setDisplayedChild() with child indexes of its own */
+    private boolean mUpdatingViews;
+
     private Context context;
     private Toast mToast;
     private LinkedList<UpdateCallback> callbacks;
@@ -106,6 +143,105 @@ public class TermViewFlipper extends ViewFlipper implements Iterable<View> {
         mStatusBarVisible = statusBarVisible;
     }
 
+    /**
+     * Show the windows of sessions, using factory to make their views.
+     */
+    public void setSessions(SessionList sessions, ViewFactory factory) {
+        mSessions = sessions;
+        mViewFactory = factory;
+        sync();
+    }
+
+    /**
+     * The view of a session, or null if it hasn't one at the moment.
+     */
+    public EmulatorView getView(TermSession session) {
+        return mViews.get(session);
+    }
+
+    /**
+     * Bring the views in line with the session list after sessions are
+     * added, removed or replaced.  The displayed session stays displayed if
+     * it is still in the list; if not, the one that took its place is
+     * shown.
+     */
+    public void sync() {
+        TermSession[] sessions = getSessions();
+        TermSession old = mDisplayedSession;
+        int position = old != null ? indexOf(sessions, old) : -1;
+        boolean moved = old != null && position < 0;
+        if (moved) {
+            pauseCurrentView();
+        }
+        updateViews(sessions, position >= 0 ? position : mDisplayed);
+        if (moved && mDisplayedSession != null) {
+            showTitle();
+            if (mResumed) {
+                resumeCurrentView();
+            }
+            notifyChange();
+        }
+    }
+
+    private TermSession[] getSessions() {
+        return mSessions != null ? mSessions.snapshot() : NO_SESSIONS;
+    }
+
+    private static int indexOf(TermSession[] sessions, TermSession session) {
+        for (int i = 0; i < sessions.length; ++i) {
+            if (sessions[i] == session) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /* Give the window at position and its neighbors views, drop the views
+       of all others, and show position's */
+    private void updateViews(TermSession[] sessions, int position) {
+        int count = sessions.length;
+        if (count == 0) {
+            mDisplayed = 0;
+            mDisplayedSession = null;
+            removeAllViews();
+            return;
+        }
+        position = Math.max(0, Math.min(position, count - 1));
+
+        IdentityHashMap<TermSession, Boolean> wanted = new IdentityHashMap<TermSession, Boolean>();
+        for (int i = -NEIGHBORS; i <= NEIGHBORS; ++i) {
+            // Wrapping around, as showNext() and showPrevious() do
+            wanted.put(sessions[((position + i) % count + count) % count], Boolean.TRUE);
+        }
+
+        mUpdatingViews = true;
+        try {
+            Iterator<Map.Entry<TermSession, EmulatorView>> it = mViews.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<TermSession, EmulatorView> entry = it.next();
+                if (!wanted.containsKey(entry.getKey())) {
+                    EmulatorView view = entry.getValue();
+                    view.onPause();
+                    removeView(view);
+                    it.remove();
+                }
+            }
+            for (TermSession session : wanted.keySet()) {
+                if (!mViews.containsKey(session)) {
+                    EmulatorView view = mViewFactory.createView(session);
+                    mViews.put(session, view);
+                    addView(view);
+                }
+            }
+        } finally {
+            mUpdatingViews = false;
+        }
+
+        mDisplayed = position;
+        mDisplayedSession = sessions[position];
+        super.setDisplayedChild(indexOfChild(mViews.get(mDisplayedSession)));
+    }
+
     public Iterator<View> iterator() {
         return new ViewFlipperIterator();
     }
@@ -125,6 +261,7 @@ public class TermViewFlipper extends ViewFlipper implements Iterable<View> {
     }
 
     public void onPause() {
+        mResumed = false;
         if (mbPollForWindowSizeChange) {
             mHandler.removeCallbacks(mCheckSize);
         }
@@ -132,6 +269,7 @@ public class TermViewFlipper extends ViewFlipper implements Iterable<View> {
     }
 
     public void onResume() {
+        mResumed = true;
         if (mbPollForWindowSizeChange) {
             mCheckSize.run();
         }
@@ -144,6 +282,7 @@ public class TermViewFlipper extends ViewFlipper implements Iterable<View> {
             return;
         }
         view.onPause();
+        setSessionForeground(view, false);
     }
 
     public void resumeCurrentView() {
@@ -153,6 +292,14 @@ public class TermViewFlipper extends ViewFlipper implements Iterable<View> {
         }
         view.onResume();
         view.requestFocus();
+        setSessionForeground(view, true);
+    }
+
+    private void setSessionForeground(EmulatorView view, boolean foreground) {
+        TermSession session = view.getTermSession();
+        if (session instanceof ShellTermSession) {
+            ((ShellTermSession) session).setForeground(foreground);
+        }
     }
 
     private void showTitle() {
@@ -183,33 +330,52 @@ public class TermViewFlipper extends ViewFlipper implements Iterable<View> {
 //        mToast.show();
     }
 
+    @Override
+    public int getDisplayedChild() {
+        return mDisplayed;
+    }
+
     @Override
     public void showPrevious() {
-        pauseCurrentView();
-        super.showPrevious();
-        showTitle();
-        resumeCurrentView();
-        notifyChange();
+        int count = getSessions().length;
+        if (count > 0) {
+            setDisplayedChild((mDisplayed + count - 1) % count);
+        }
     }
 
     @Override
     public void showNext() {
-        pauseCurrentView();
-        super.showNext();
-        showTitle();
-        resumeCurrentView();
-        notifyChange();
+        int count = getSessions().length;
+        if (count > 0) {
+            setDisplayedChild((mDisplayed + 1) % count);
+        }
     }
 
     @Override
     public void setDisplayedChild(int position) {
+        if (mUpdatingViews) {
+            super.setDisplayedChild(position);
+            return;
+        }
         pauseCurrentView();
-        super.setDisplayedChild(position);
+        updateViews(getSessions(), position);
         showTitle();
         resumeCurrentView();
         notifyChange();
     }
 
+    @Override
+    public void removeAllViews() {
+        boolean updating = mUpdatingViews;
+        mUpdatingViews = true;
+        try {
+            super.removeAllViews();
+        } finally {
+            mUpdatingViews = updating;
+        }
+        mViews.clear();
+    }
+
     @Override
     public void addView(View v, int index) {
         super.addView(v, index, mChildParams);
@@ -0,0 +1,308 @@
+package jackpal.androidterm;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedWriter;
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.zip.GZIPOutputStream;
+
+import jackpal.androidterm.emulatorview.TermSession;
+
+/**
+ * Writes a session's transcript to a stream on a background thread.
+ * <p>
+ * A session with a long scrollback is read from its {@link ScrollbackStore}
+ * a block at a time, so the whole history is never held in memory at once.
+ * Otherwise only the emulator's transcript is available, which the emulator
+ * already bounds to its transcript size; it is taken on the main thread,
+ * since TermSession isn't thread safe, and written out on the background
+ * thread.
+ * <p>
+ * HTML output is the text in a &lt;pre&gt; in the window's colors.  The
+ * emulator doesn't give access to the colors of individual cells, so these
+ * are lost.
+ */
+final class TranscriptExporter implements Runnable {
+    private static final String TAG = "TranscriptExporter";
+
+    static final int FORMAT_TEXT = 0;
+    static final int FORMAT_GZIP = 1;
+    static final int FORMAT_HTML = 2;
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final long PROGRESS_INTERVAL = 100;
+
+    /**
+     * Told about an export's progress, on the main thread.
+     */
+    interface Listener {
+        void onExportProgress(long charsDone, long charsTotal);
+
+        /**
+         * @param error why the export failed, or null if it succeeded or
+         *              was cancelled.
+         */
+        void onExportFinished(boolean cancelled, IOException error);
+    }
+
+    private final OutputStream mOut;
+    private final int mFormat;
+    private final int[] mColors;
+    private final String mTitle;
+    private final ScrollbackStore mScrollback;
+    private final String mText;
+    private final long mTotal;
+    private final Listener mListener;
+    private final Handler mHandler = new Handler();
+    private volatile boolean mCancelled;
+
+    /**
+     * Must be constructed on the main thread.  The exporter closes out
+     * when it is done.
+     *
+     * @param colors the foreground and background colors for HTML output.
+     */
+    TranscriptExporter(TermSession session, OutputStream out, int format, int[] colors,
+            Listener listener) {
+        mOut = out;
+        mFormat = format;
+        mColors = colors;
+        mTitle = session.getTitle();
+        mListener = listener;
+
+        ScrollbackStore scrollback = null;
+        if (session instanceof ShellTermSession) {
+            scrollback = ((ShellTermSession) session).getScrollback();
+        }
+        mScrollback = scrollback;
+        if (scrollback != null) {
+            mText = null;
+            mTotal = scrollback.getTextSize();
+        } else {
+            mText = session.getTranscriptText().trim();
+            mTotal = mText.length();
+        }
+    }
+
+    /** The file name extension for a format, with its dot */
+    static String getExtension(int format) {
+        switch (format) {
+        case FORMAT_GZIP:
+            return ".txt.gz";
+        case FORMAT_HTML:
+            return ".html";
+        default:
+            return ".txt";
+        }
+    }
+
+    /** The MIME type of a format */
+    static String getMimeType(int format) {
+        switch (format) {
+        case FORMAT_GZIP:
+            return "application/gzip";
+        case FORMAT_HTML:
+            return "text/html";
+        default:
+            return "text/plain";
+        }
+    }
+
+    void start() {
+        Thread thread = new Thread(this, "Transcript export");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stop soon.  Whatever was already written stays in the output.
+     */
+    void cancel() {
+        mCancelled = true;
+    }
+
+    public void run() {
+        IOException error = null;
+        Writer writer = null;
+        try {
+            OutputStream out = mOut;
+            if (mFormat == FORMAT_GZIP) {
+                out = new GZIPOutputStream(out, BUFFER_SIZE);
+            }
+            writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"), BUFFER_SIZE);
+            if (mFormat == FORMAT_HTML) {
+                writeHtmlHeader(writer);
+                writeTranscript(new HtmlEscaper(writer));
+                writer.write("</pre>\n</body>\n</html>\n");
+            } else {
+                writeTranscript(writer);
+            }
+        } catch (IOException e) {
+            if (!mCancelled) {
+                Log.e(TAG, "Transcript export failed", e);
+                error = e;
+            }
+        } finally {
+            try {
+                if (writer != null) {
+                    writer.close();
+                } else {
+                    mOut.close();
+                }
+            } catch (IOException e) {
+                if (error == null && !mCancelled) {
+                    error = e;
+                }
+            }
+        }
+
+        final boolean cancelled = mCancelled;
+        final IOException result = error;
+        mHandler.post(new Runnable() {
+            public void run() {
+                mListener.onExportFinished(cancelled, result);
+            }
+        });
+    }
+
+    private void writeTranscript(Writer out) throws IOException {
+        Writer counted = new ProgressWriter(out);
+        if (mScrollback != null) {
+            mScrollback.writeTo(counted);
+        } else {
+            counted.write(mText);
+        }
+        counted.flush();
+    }
+
+    private void writeHtmlHeader(Writer out) throws IOException {
+        out.write("<!DOCTYPE html>\n<html>\n<head>\n<meta charset=\"utf-8\">\n<title>");
+        if (mTitle != null) {
+            new HtmlEscaper(out).write(mTitle);
+        }
+        out.write("</title>\n</head>\n<body style=\"margin:0\">\n");
+        out.write("<pre style=\"margin:0;padding:8px;font-family:monospace;color:"
+                + cssColor(mColors[0]) + ";background:" + cssColor(mColors[1]) + "\">");
+    }
+
+    private static String cssColor(int color) {
+        return String.format("#%06x", color & 0xffffff);
+    }
+
+    /* Counts the characters written, posts progress to the listener now and
+       then, and stops the export when it is cancelled */
+    private final class ProgressWriter extends FilterWriter {
+        private long mDone;
+        private long mLastProgress;
+
+        ProgressWriter(Writer out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            out.write(c);
+            count(1);
+        }
+
+        @Override
+        public void write(char[] buffer, int offset, int count) throws IOException {
+            out.write(buffer, offset, count);
+            count(count);
+        }
+
+        @Override
+        public void write(String str, int offset, int count) throws IOException {
+            out.write(str, offset, count);
+            count(count);
+        }
+
+        private void count(int count) throws IOException {
+            if (mCancelled) {
+                throw new IOException("Export cancelled");
+            }
+            mDone += count;
+            long now = SystemClock.uptimeMillis();
+            if (now - mLastProgress >= PROGRESS_INTERVAL) {
+                mLastProgress = now;
+                final long done = mDone;
+                final long total = Math.max(mTotal, done);
+                mHandler.post(new Runnable() {
+                    public void run() {
+                        mListener.onExportProgress(done, total);
+                    }
+                });
+            }
+        }
+    }
+
+    /* Escapes the characters HTML treats specially.  Doesn't close the
+       underlying writer, so it can be used for part of a document */
+    private static final class HtmlEscaper extends FilterWriter {
+        HtmlEscaper(Writer out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            switch (c) {
+            case '<':
+                out.write("&lt;");
+                break;
+            case '>':
+                out.write("&gt;");
+                break;
+            case '&':
+                out.write("&amp;");
+                break;
+            case '"':
+                out.write("&quot;");
+                break;
+            default:
+                out.write(c);
+                break;
+            }
+        }
+
+        @Override
+        public void write(char[] buffer, int offset, int count) throws IOException {
+            int start = offset;
+            int end = offset + count;
+            for (int i = offset; i < end; ++i) {
+                char c = buffer[i];
+                if (c == '<' || c == '>' || c == '&' || c == '"') {
+                    out.write(buffer, start, i - start);
+                    write(c);
+                    start = i + 1;
+                }
+            }
+            out.write(buffer, start, end - start);
+        }
+
+        @Override
+        public void write(String str, int offset, int count) throws IOException {
+            int start = offset;
+            int end = offset + count;
+            for (int i = offset; i < end; ++i) {
+                char c = str.charAt(i);
+                if (c == '<' || c == '>' || c == '&' || c == '"') {
+                    out.write(str, start, i - start);
+                    write(c);
+                    start = i + 1;
+                }
+            }
+            out.write(str, start, end - start);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
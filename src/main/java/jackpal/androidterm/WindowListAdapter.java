@@ -24,13 +24,41 @@ import android.view.ViewGroup;
 import android.widget.BaseAdapter;
 import android.widget.TextView;
 
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
 import jackpal.androidterm.emulatorview.TermSession;
 import jackpal.androidterm.emulatorview.UpdateCallback;
 
 import jackpal.androidterm.util.SessionList;
 
-public class WindowListAdapter extends BaseAdapter implements UpdateCallback {
+public class WindowListAdapter extends BaseAdapter
+        implements UpdateCallback, SessionList.TitleChangedListener {
     private SessionList mSessions;
+    /* The title labels of the rows handed out by getView(), and the
+       sessions they show, so a title change rebinds only its own rows */
+    private final WeakHashMap<TextView, TermSession> mLabels =
+            new WeakHashMap<TextView, TermSession>();
+    /* Ids stay with a session as windows are opened and closed around it */
+    private final WeakHashMap<TermSession, Long> mIds = new WeakHashMap<TermSession, Long>();
+    private long mNextId;
+
+    /* What getView() keeps in the tag of the rows it makes */
+    private static final class RowViews {
+        TextView label;
+        View close;
+    }
+
+    private final View.OnClickListener mCloseListener = new View.OnClickListener() {
+        public void onClick(View v) {
+            TermSession session = (TermSession) v.getTag();
+            if (session != null && mSessions.remove(session)) {
+                session.finish();
+                notifyDataSetChanged();
+            }
+        }
+    };
 
     public WindowListAdapter(SessionList sessions) {
         setSessions(sessions);
@@ -52,7 +80,18 @@ public class WindowListAdapter extends BaseAdapter implements UpdateCallback {
     }
 
     public long getItemId(int position) {
-        return position;
+        TermSession session = mSessions.get(position);
+        Long id = mIds.get(session);
+        if (id == null) {
+            id = mNextId++;
+            mIds.put(session, id);
+        }
+        return id;
+    }
+
+    @Override
+    public boolean hasStableIds() {
+        return true;
     }
 
     protected String getSessionTitle(int position, String defaultTitle) {
@@ -64,6 +103,20 @@ public class WindowListAdapter extends BaseAdapter implements UpdateCallback {
         }
     }
 
+    /**
+     * Show the title of the window at position in label, and keep it
+     * up to date when that title changes.
+     */
+    protected void bindLabel(TextView label, int position) {
+        showTitle(label, position);
+        mLabels.put(label, mSessions.get(position));
+    }
+
+    private void showTitle(TextView label, int position) {
+        String defaultTitle = label.getContext().getString(R.string.window_title, position + 1);
+        label.setText(getSessionTitle(position, defaultTitle));
+    }
+
     private static Activity unwrap(Context context) {
         while (!(context instanceof Activity) && context instanceof ContextWrapper) {
             context = ((ContextWrapper) context).getBaseContext();
@@ -73,25 +126,21 @@ public class WindowListAdapter extends BaseAdapter implements UpdateCallback {
     }
 
     public View getView(int position, View convertView, ViewGroup parent) {
-        Activity act = (Activity) unwrap(parent.getContext());
-        View child = act.getLayoutInflater().inflate(R.layout.window_list_item, parent, false);
-        View close = child.findViewById(R.id.window_list_close);
-
-        TextView label = (TextView) child.findViewById(R.id.window_list_label);
-        String defaultTitle = act.getString(R.string.window_title, position+1);
-        label.setText(getSessionTitle(position, defaultTitle));
+        View child = convertView;
+        RowViews views = child != null && child.getTag() instanceof RowViews
+                ? (RowViews) child.getTag() : null;
+        if (views == null) {
+            Activity act = (Activity) unwrap(parent.getContext());
+            child = act.getLayoutInflater().inflate(R.layout.window_list_item, parent, false);
+            views = new RowViews();
+            views.label = (TextView) child.findViewById(R.id.window_list_label);
+            views.close = child.findViewById(R.id.window_list_close);
+            views.close.setOnClickListener(mCloseListener);
+            child.setTag(views);
+        }
 
-        final SessionList sessions = mSessions;
-        final int closePosition = position;
-        close.setOnClickListener(new View.OnClickListener() {
-            public void onClick(View v) {
-                TermSession session = sessions.remove(closePosition);
-                if (session != null) {
-                    session.finish();
-                    notifyDataSetChanged();
-                }
-            }
-        });
+        bindLabel(views.label, position);
+        views.close.setTag(mSessions.get(position));
 
         return child;
     }
@@ -99,4 +148,19 @@ public class WindowListAdapter extends BaseAdapter implements UpdateCallback {
     public void onUpdate() {
         notifyDataSetChanged();
     }
+
+    public void onTitlesChanged(List<TermSession> sessions) {
+        SessionList all = mSessions;
+        if (all == null) {
+            return;
+        }
+        for (Map.Entry<TextView, TermSession> entry : mLabels.entrySet()) {
+            if (sessions.contains(entry.getValue())) {
+                int position = all.indexOf(entry.getValue());
+                if (position >= 0) {
+                    showTitle(entry.getKey(), position);
+                }
+            }
+        }
+    }
 }
@@ -16,12 +16,27 @@
 
 package jackpal.androidterm.compat;
 
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.StructStat;
+
 import java.io.File;
 
 /**
  * Compatibility class for java.io.File
  */
 public class FileCompat {
+    private static class Api21OrLater {
+        public static long[] getTimes(File file) {
+            try {
+                StructStat stat = Os.stat(file.getPath());
+                return new long[] { stat.st_mtime * 1000, stat.st_ctime * 1000 };
+            } catch (ErrnoException e) {
+                return new long[2];
+            }
+        }
+    }
+
     private static class Api9OrLater {
         public static boolean canExecute(File file) {
             return file.canExecute();
@@ -47,4 +62,20 @@ public class FileCompat {
             return Api9OrLater.canExecute(file);
         }
     }
+
+    /**
+     * The file's modification time and the time of the last change to it or
+     * its metadata (such as a chmod), in milliseconds, from a single stat;
+     * both are 0 if it doesn't exist.  From API 21 they only have a
+     * resolution of one second.  Before API 21 the change time isn't
+     * available and the modification time is returned for both.
+     */
+    public static long[] getTimes(File file) {
+        if (AndroidCompat.SDK < 21) {
+            long mtime = file.lastModified();
+            return new long[] { mtime, mtime };
+        } else {
+            return Api21OrLater.getTimes(file);
+        }
+    }
 }
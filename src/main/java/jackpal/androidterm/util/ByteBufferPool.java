@@ -0,0 +1,56 @@
+package jackpal.androidterm.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * A small pool of equally sized direct ByteBuffers.
+ * <p>
+ * Direct buffers are expensive to allocate and are only freed by the
+ * finalizer, so buffers used for pty traffic are recycled through a pool
+ * instead of being allocated per session or per read.
+ */
+public class ByteBufferPool {
+    private final int mBufferSize;
+    private final int mMaxPooled;
+    private final ArrayList<ByteBuffer> mFree;
+
+    /**
+     * @param bufferSize Capacity of every buffer handed out.
+     * @param maxPooled Maximum number of idle buffers kept for reuse; extra
+     *     buffers given back are left to the garbage collector.
+     */
+    public ByteBufferPool(int bufferSize, int maxPooled) {
+        mBufferSize = bufferSize;
+        mMaxPooled = maxPooled;
+        mFree = new ArrayList<ByteBuffer>(maxPooled);
+    }
+
+    public int getBufferSize() {
+        return mBufferSize;
+    }
+
+    /**
+     * Take a cleared buffer from the pool, allocating one if none is idle.
+     */
+    public synchronized ByteBuffer acquire() {
+        int size = mFree.size();
+        if (size > 0) {
+            return mFree.remove(size - 1);
+        }
+        return ByteBuffer.allocateDirect(mBufferSize);
+    }
+
+    /**
+     * Give a buffer back to the pool.  The caller must not touch it again.
+     */
+    public synchronized void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() != mBufferSize) {
+            return;
+        }
+        if (mFree.size() < mMaxPooled) {
+            buffer.clear();
+            mFree.add(buffer);
+        }
+    }
+}
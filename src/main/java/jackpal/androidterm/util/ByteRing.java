@@ -0,0 +1,122 @@
+package jackpal.androidterm.util;
+
+/**
+ * A byte buffer of bounded size that keeps the most recent bytes written to
+ * it, discarding the oldest once it is full.
+ * <p>
+ * Storage is allocated as data arrives, doubling up to the capacity, so an
+ * idle ring costs almost nothing.  Not thread safe.
+ */
+public class ByteRing {
+    private static final int INITIAL_SIZE = 1024;
+
+    private final int mCapacity;
+    private byte[] mData = new byte[0];
+    private int mHead;
+    private int mCount;
+    private long mDiscarded;
+
+    public ByteRing(int capacity) {
+        mCapacity = capacity;
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /** Number of bytes held */
+    public int size() {
+        return mCount;
+    }
+
+    /** Number of bytes pushed out by newer ones since the last clear() */
+    public long getDiscarded() {
+        return mDiscarded;
+    }
+
+    /** Number of bytes written since the last clear(), held or not */
+    public long getTotalWritten() {
+        return mDiscarded + mCount;
+    }
+
+    public void write(byte[] data, int offset, int count) {
+        if (count >= mCapacity) {
+            // Only the tail survives
+            mDiscarded += mCount + count - mCapacity;
+            ensureSize(mCapacity);
+            System.arraycopy(data, offset + count - mCapacity, mData, 0, mCapacity);
+            mHead = 0;
+            mCount = mCapacity;
+            return;
+        }
+        ensureSize(Math.min(mCapacity, mCount + count));
+
+        int overflow = mCount + count - mData.length;
+        if (overflow > 0) {
+            mHead = (mHead + overflow) % mData.length;
+            mCount -= overflow;
+            mDiscarded += overflow;
+        }
+        int tail = (mHead + mCount) % mData.length;
+        int first = Math.min(count, mData.length - tail);
+        System.arraycopy(data, offset, mData, tail, first);
+        System.arraycopy(data, offset + first, mData, 0, count - first);
+        mCount += count;
+    }
+
+    /**
+     * Copy out everything held, oldest first.
+     */
+    public byte[] toByteArray() {
+        byte[] result = new byte[mCount];
+        int first = Math.min(mCount, mData.length - mHead);
+        System.arraycopy(mData, mHead, result, 0, first);
+        System.arraycopy(mData, 0, result, first, mCount - first);
+        return result;
+    }
+
+    /**
+     * Copy out held bytes, starting with the one at position, counted as in
+     * {@link #getTotalWritten()}.  A position that has been discarded
+     * already reads from the oldest byte held instead.
+     *
+     * @return the number of bytes copied.
+     */
+    public int read(long position, byte[] buffer, int offset, int count) {
+        long skip = Math.max(position - mDiscarded, 0);
+        if (skip >= mCount) {
+            return 0;
+        }
+        count = (int) Math.min(count, mCount - skip);
+        int from = (int) ((mHead + skip) % mData.length);
+        int first = Math.min(count, mData.length - from);
+        System.arraycopy(mData, from, buffer, offset, first);
+        System.arraycopy(mData, 0, buffer, offset + first, count - first);
+        return count;
+    }
+
+    /**
+     * Empty the ring and free its storage.
+     */
+    public void clear() {
+        mData = new byte[0];
+        mHead = 0;
+        mCount = 0;
+        mDiscarded = 0;
+    }
+
+    private void ensureSize(int size) {
+        if (size <= mData.length) {
+            return;
+        }
+        int newSize = Math.max(INITIAL_SIZE, mData.length);
+        while (newSize < size) {
+            newSize *= 2;
+        }
+        newSize = Math.min(newSize, mCapacity);
+        byte[] data = toByteArray();
+        mData = new byte[newSize];
+        System.arraycopy(data, 0, mData, 0, data.length);
+        mHead = 0;
+    }
+}
@@ -16,25 +16,84 @@
 
 package jackpal.androidterm.util;
 
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.AbstractList;
 import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import jackpal.androidterm.emulatorview.TermSession;
 import jackpal.androidterm.emulatorview.UpdateCallback;
 
 /**
- * An ArrayList of TermSessions which allows users to register callbacks in
+ * A list of TermSessions which allows users to register callbacks in
  * order to be notified when the list is changed.
+ * <p>
+ * The list may be read and changed from any thread.  Changes copy the
+ * backing array under a lock, so reads take no lock and an iterator walks
+ * the list as it was when the iterator was made, never throwing
+ * ConcurrentModificationException.
+ * <p>
+ * Callbacks run on the main thread, at most once per {@link #FRAME_INTERVAL}:
+ * changes to the list and to session titles are collected until then, so a
+ * program that sets its title in a tight loop costs one update per frame.
+ * Title listeners are told which sessions' titles changed.
+ * <p>
+ * Sessions that implement {@link Handled} are also indexed by their
+ * handle; see {@link #findByHandle}.
  */
-@SuppressWarnings("serial")
-public class SessionList extends ArrayList<TermSession>
+public class SessionList extends AbstractList<TermSession> implements RandomAccess
 {
-    LinkedList<UpdateCallback> callbacks = new LinkedList<UpdateCallback>();
-    LinkedList<UpdateCallback> titleChangedListeners = new LinkedList<UpdateCallback>();
-    UpdateCallback mTitleChangedListener = new UpdateCallback() {
-        public void onUpdate() {
-            notifyTitleChanged();
+    /**
+     * A session with a handle other apps can refer to it by.
+     */
+    public interface Handled {
+        /** The handle, or null if the session has none yet */
+        String getHandle();
+    }
+
+    /**
+     * Told which sessions' titles have changed, on the main thread.
+     */
+    public interface TitleChangedListener {
+        /**
+         * @param sessions the sessions, all still in the list, in list order.
+         */
+        void onTitlesChanged(List<TermSession> sessions);
+    }
+
+    /** How long changes are collected before callbacks are run, in ms */
+    public static final long FRAME_INTERVAL = 16;
+
+    private static final TermSession[] EMPTY = new TermSession[0];
+
+    private volatile TermSession[] mSessions = EMPTY;
+    private final ConcurrentHashMap<String, TermSession> mByHandle =
+            new ConcurrentHashMap<String, TermSession>();
+
+    private final CopyOnWriteArrayList<UpdateCallback> callbacks =
+            new CopyOnWriteArrayList<UpdateCallback>();
+    private final CopyOnWriteArrayList<TitleChangedListener> titleChangedListeners =
+            new CopyOnWriteArrayList<TitleChangedListener>();
+
+    // Changes not yet passed on to callbacks; guarded by this
+    private boolean mListChanged;
+    private final LinkedHashSet<TermSession> mTitlesChanged = new LinkedHashSet<TermSession>();
+    private boolean mDispatchPending;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mDispatch = new Runnable() {
+        public void run() {
+            dispatch();
         }
     };
 
@@ -42,8 +101,11 @@ public class SessionList extends ArrayList<TermSession>
         super();
     }
 
+    /**
+     * @param capacity ignored; the list is always exactly its size.
+     */
     public SessionList(int capacity) {
-        super(capacity);
+        super();
     }
 
     public void addCallback(UpdateCallback callback) {
@@ -54,98 +116,321 @@ public class SessionList extends ArrayList<TermSession>
         return callbacks.remove(callback);
     }
 
-    private void notifyChange() {
-        for (UpdateCallback callback : callbacks) {
-            callback.onUpdate();
-        }
+    private synchronized void notifyChange() {
+        mListChanged = true;
+        scheduleDispatch();
     }
 
-    public void addTitleChangedListener(UpdateCallback listener) {
+    public void addTitleChangedListener(TitleChangedListener listener) {
         titleChangedListeners.add(listener);
     }
 
-    public boolean removeTitleChangedListener(UpdateCallback listener) {
+    public boolean removeTitleChangedListener(TitleChangedListener listener) {
         return titleChangedListeners.remove(listener);
     }
 
-    private void notifyTitleChanged() {
-        for (UpdateCallback listener : titleChangedListeners) {
-            listener.onUpdate();
+    private synchronized void notifyTitleChanged(TermSession session) {
+        mTitlesChanged.add(session);
+        scheduleDispatch();
+    }
+
+    /* Called with the lock held */
+    private void scheduleDispatch() {
+        if (!mDispatchPending) {
+            mDispatchPending = true;
+            mHandler.postDelayed(mDispatch, FRAME_INTERVAL);
+        }
+    }
+
+    /* Main thread */
+    private void dispatch() {
+        boolean listChanged;
+        List<TermSession> titlesChanged = null;
+        synchronized (this) {
+            mDispatchPending = false;
+            listChanged = mListChanged;
+            mListChanged = false;
+            if (!mTitlesChanged.isEmpty()) {
+                titlesChanged = new ArrayList<TermSession>(mTitlesChanged.size());
+                for (TermSession session : mSessions) {
+                    if (mTitlesChanged.contains(session)) {
+                        titlesChanged.add(session);
+                    }
+                }
+                mTitlesChanged.clear();
+            }
+        }
+
+        if (listChanged) {
+            for (UpdateCallback callback : callbacks) {
+                callback.onUpdate();
+            }
+        }
+        if (titlesChanged != null && !titlesChanged.isEmpty()) {
+            titlesChanged = Collections.unmodifiableList(titlesChanged);
+            for (TitleChangedListener listener : titleChangedListeners) {
+                listener.onTitlesChanged(titlesChanged);
+            }
+        }
+    }
+
+    /* Passes a session's title changes on, saying which session it was */
+    private final class TitleWatcher implements UpdateCallback {
+        private final TermSession mSession;
+
+        TitleWatcher(TermSession session) {
+            mSession = session;
+        }
+
+        public void onUpdate() {
+            notifyTitleChanged(mSession);
+        }
+    }
+
+    /**
+     * The session with this handle, or null if none in the list has it.
+     */
+    public TermSession findByHandle(String handle) {
+        if (handle == null) {
+            return null;
+        }
+        return mByHandle.get(handle);
+    }
+
+    /**
+     * Index a session already in the list under the handle it was given
+     * after it was added.
+     */
+    public void handleChanged(TermSession session) {
+        synchronized (this) {
+            if (indexOf(mSessions, session) >= 0) {
+                attach(session, false);
+            }
         }
     }
 
+    /**
+     * The sessions in the list now, in order.  The array is the caller's.
+     */
+    public TermSession[] snapshot() {
+        TermSession[] sessions = mSessions;
+        return sessions.length == 0 ? EMPTY : sessions.clone();
+    }
+
+    @Override
+    public TermSession get(int index) {
+        TermSession[] sessions = mSessions;
+        return sessions[checkIndex(index, sessions.length)];
+    }
+
+    @Override
+    public int size() {
+        return mSessions.length;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return mSessions.length == 0;
+    }
+
+    @Override
+    public int indexOf(Object object) {
+        return indexOf(mSessions, object);
+    }
+
+    @Override
+    public int lastIndexOf(Object object) {
+        TermSession[] sessions = mSessions;
+        for (int i = sessions.length - 1; i >= 0; --i) {
+            if (sessions[i] == object) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public boolean contains(Object object) {
+        return indexOf(mSessions, object) >= 0;
+    }
+
+    @Override
+    public Object[] toArray() {
+        return snapshot();
+    }
+
+    @Override
+    public Iterator<TermSession> iterator() {
+        final TermSession[] sessions = mSessions;
+        return new Iterator<TermSession>() {
+            private int mNext;
+
+            public boolean hasNext() {
+                return mNext < sessions.length;
+            }
+
+            public TermSession next() {
+                if (mNext >= sessions.length) {
+                    throw new NoSuchElementException();
+                }
+                return sessions[mNext++];
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
     @Override
     public boolean add(TermSession object) {
-        boolean result = super.add(object);
-        object.setTitleChangedListener(mTitleChangedListener);
-        notifyChange();
-        return result;
+        add(mSessions.length, object);
+        return true;
     }
 
     @Override
     public void add(int index, TermSession object) {
-        super.add(index, object);
-        object.setTitleChangedListener(mTitleChangedListener);
+        synchronized (this) {
+            TermSession[] old = mSessions;
+            checkIndex(index, old.length + 1);
+            TermSession[] sessions = new TermSession[old.length + 1];
+            System.arraycopy(old, 0, sessions, 0, index);
+            sessions[index] = object;
+            System.arraycopy(old, index, sessions, index + 1, old.length - index);
+            mSessions = sessions;
+            attach(object, true);
+        }
         notifyChange();
     }
 
     @Override
     public boolean addAll(Collection <? extends TermSession> collection) {
-        boolean result = super.addAll(collection);
-        for (TermSession session : collection) {
-            session.setTitleChangedListener(mTitleChangedListener);
-        }
-        notifyChange();
-        return result;
+        return addAll(mSessions.length, collection);
     }
 
     @Override
     public boolean addAll(int index, Collection <? extends TermSession> collection) {
-        boolean result = super.addAll(index, collection);
-        for (TermSession session : collection) {
-            session.setTitleChangedListener(mTitleChangedListener);
+        TermSession[] added = collection.toArray(new TermSession[collection.size()]);
+        synchronized (this) {
+            TermSession[] old = mSessions;
+            checkIndex(index, old.length + 1);
+            TermSession[] sessions = new TermSession[old.length + added.length];
+            System.arraycopy(old, 0, sessions, 0, index);
+            System.arraycopy(added, 0, sessions, index, added.length);
+            System.arraycopy(old, index, sessions, index + added.length, old.length - index);
+            mSessions = sessions;
+            for (TermSession session : added) {
+                attach(session, true);
+            }
         }
         notifyChange();
-        return result;
+        return added.length > 0;
     }
 
     @Override
     public void clear() {
-        for (TermSession session : this) {
-            session.setTitleChangedListener(null);
+        synchronized (this) {
+            for (TermSession session : mSessions) {
+                detach(session);
+            }
+            mSessions = EMPTY;
         }
-        super.clear();
         notifyChange();
     }
 
     @Override
     public TermSession remove(int index) {
-        TermSession object = super.remove(index);
-        if (object != null) {
-            object.setTitleChangedListener(null);
-            notifyChange();
+        TermSession object;
+        synchronized (this) {
+            TermSession[] old = mSessions;
+            object = old[checkIndex(index, old.length)];
+            mSessions = without(old, index);
+            detach(object);
         }
+        notifyChange();
         return object;
     }
 
     @Override
     public boolean remove(Object object) {
-        boolean result = super.remove(object);
-        if (result && object instanceof TermSession) {
-            ((TermSession) object).setTitleChangedListener(null);
-            notifyChange();
+        synchronized (this) {
+            TermSession[] old = mSessions;
+            int index = indexOf(old, object);
+            if (index < 0) {
+                return false;
+            }
+            mSessions = without(old, index);
+            detach(old[index]);
         }
-        return result;
+        notifyChange();
+        return true;
     }
 
     @Override
     public TermSession set(int index, TermSession object) {
-        TermSession old = super.set(index, object);
-        object.setTitleChangedListener(mTitleChangedListener);
-        if (old != null) {
-            old.setTitleChangedListener(null);
+        TermSession old;
+        synchronized (this) {
+            TermSession[] sessions = mSessions.clone();
+            old = sessions[checkIndex(index, sessions.length)];
+            sessions[index] = object;
+            mSessions = sessions;
+            if (old != null) {
+                detach(old);
+            }
+            attach(object, true);
         }
         notifyChange();
         return old;
     }
+
+    /* Called with the lock held */
+    private void attach(TermSession session, boolean listen) {
+        if (listen) {
+            session.setTitleChangedListener(new TitleWatcher(session));
+        }
+        if (session instanceof Handled) {
+            String handle = ((Handled) session).getHandle();
+            if (handle != null) {
+                mByHandle.put(handle, session);
+            }
+        }
+    }
+
+    /* Called with the lock held */
+    private void detach(TermSession session) {
+        session.setTitleChangedListener(null);
+        if (session instanceof Handled) {
+            String handle = ((Handled) session).getHandle();
+            if (handle != null) {
+                // Leave it if a successor with the same handle replaced it
+                mByHandle.remove(handle, session);
+            }
+        }
+    }
+
+    private static int indexOf(TermSession[] sessions, Object object) {
+        for (int i = 0; i < sessions.length; ++i) {
+            if (sessions[i] == object) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static TermSession[] without(TermSession[] sessions, int index) {
+        if (sessions.length == 1) {
+            return EMPTY;
+        }
+        TermSession[] result = new TermSession[sessions.length - 1];
+        System.arraycopy(sessions, 0, result, 0, index);
+        System.arraycopy(sessions, index + 1, result, index, result.length - index);
+        return result;
+    }
+
+    private static int checkIndex(int index, int limit) {
+        if (index < 0 || index >= limit) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + limit);
+        }
+        return index;
+    }
 }
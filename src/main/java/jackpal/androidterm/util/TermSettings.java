@@ -47,6 +47,16 @@ public class TermSettings {
     private boolean mVerifyPath;
     private boolean mDoPathExtensions;
     private boolean mAllowPathPrepend;
+    private boolean mDirectIO;
+    private int mSessionPoolSize;
+    private int mSessionPoolExpiry;
+    private boolean mFloodControl;
+    private int mFloodThreshold;
+    private int mHibernateTimeout;
+    private int mHibernateHeapThreshold;
+    private boolean mLongScrollback;
+    private boolean mBracketedPaste;
+    private boolean mControlSocket;
 
     private String mPrependPath = null;
     private String mAppendPath = null;
@@ -71,6 +81,22 @@ public class TermSettings {
     private static final String VERIFYPATH_KEY = "verify_path";
     private static final String PATHEXTENSIONS_KEY = "do_path_extensions";
     private static final String PATHPREPEND_KEY = "allow_prepend_path";
+    private static final String DIRECTIO_KEY = "direct_io";
+    private static final String SESSIONPOOLSIZE_KEY = "session_pool_size";
+    private static final String SESSIONPOOLEXPIRY_KEY = "session_pool_expiry";
+    private static final String FLOODCONTROL_KEY = "flood_control";
+    private static final String FLOODTHRESHOLD_KEY = "flood_threshold";
+    private static final String HIBERNATETIMEOUT_KEY = "hibernate_timeout";
+    private static final String HIBERNATEHEAP_KEY = "hibernate_heap_threshold";
+    private static final String LONGSCROLLBACK_KEY = "long_scrollback";
+    private static final String BRACKETEDPASTE_KEY = "bracketed_paste";
+    private static final String CONTROLSOCKET_KEY = "control_socket";
+
+    private static final int SESSION_POOL_SIZE_MAX = 3;
+    private static final int SESSION_POOL_EXPIRY_MAX = 24 * 60;
+    private static final int FLOOD_THRESHOLD_MAX = 64 * 1024;
+    private static final int HIBERNATE_TIMEOUT_MAX = 24 * 60;
+    private static final int HIBERNATE_HEAP_THRESHOLD_MAX = 100;
     private static final String ALT_SENDS_ESC = "alt_sends_esc";
 
     public static final int WHITE               = 0xffffffff;
@@ -164,6 +190,16 @@ public class TermSettings {
         mVerifyPath = res.getBoolean(R.bool.pref_verify_path_default);
         mDoPathExtensions = res.getBoolean(R.bool.pref_do_path_extensions_default);
         mAllowPathPrepend = res.getBoolean(R.bool.pref_allow_prepend_path_default);
+        mDirectIO = res.getBoolean(R.bool.pref_direct_io_default);
+        mSessionPoolSize = Integer.parseInt(res.getString(R.string.pref_session_pool_size_default));
+        mSessionPoolExpiry = Integer.parseInt(res.getString(R.string.pref_session_pool_expiry_default));
+        mFloodControl = res.getBoolean(R.bool.pref_flood_control_default);
+        mFloodThreshold = Integer.parseInt(res.getString(R.string.pref_flood_threshold_default));
+        mHibernateTimeout = Integer.parseInt(res.getString(R.string.pref_hibernate_timeout_default));
+        mHibernateHeapThreshold = Integer.parseInt(res.getString(R.string.pref_hibernate_heap_threshold_default));
+        mLongScrollback = res.getBoolean(R.bool.pref_long_scrollback_default);
+        mBracketedPaste = res.getBoolean(R.bool.pref_bracketed_paste_default);
+        mControlSocket = res.getBoolean(R.bool.pref_control_socket_default);
         mAltSendsEsc = res.getBoolean(R.bool.pref_alt_sends_esc_default);
     }
 
@@ -189,6 +225,17 @@ public class TermSettings {
         mVerifyPath = readBooleanPref(VERIFYPATH_KEY, mVerifyPath);
         mDoPathExtensions = readBooleanPref(PATHEXTENSIONS_KEY, mDoPathExtensions);
         mAllowPathPrepend = readBooleanPref(PATHPREPEND_KEY, mAllowPathPrepend);
+        mDirectIO = readBooleanPref(DIRECTIO_KEY, mDirectIO);
+        mSessionPoolSize = readIntPref(SESSIONPOOLSIZE_KEY, mSessionPoolSize, SESSION_POOL_SIZE_MAX);
+        mSessionPoolExpiry = readIntPref(SESSIONPOOLEXPIRY_KEY, mSessionPoolExpiry, SESSION_POOL_EXPIRY_MAX);
+        mFloodControl = readBooleanPref(FLOODCONTROL_KEY, mFloodControl);
+        mFloodThreshold = readIntPref(FLOODTHRESHOLD_KEY, mFloodThreshold, FLOOD_THRESHOLD_MAX);
+        mHibernateTimeout = readIntPref(HIBERNATETIMEOUT_KEY, mHibernateTimeout, HIBERNATE_TIMEOUT_MAX);
+        mHibernateHeapThreshold = readIntPref(HIBERNATEHEAP_KEY, mHibernateHeapThreshold,
+                HIBERNATE_HEAP_THRESHOLD_MAX);
+        mLongScrollback = readBooleanPref(LONGSCROLLBACK_KEY, mLongScrollback);
+        mBracketedPaste = readBooleanPref(BRACKETEDPASTE_KEY, mBracketedPaste);
+        mControlSocket = readBooleanPref(CONTROLSOCKET_KEY, mControlSocket);
         mAltSendsEsc = readBooleanPref(ALT_SENDS_ESC, mAltSendsEsc);
         mPrefs = null;  // we leak a Context if we hold on to this
     }
@@ -319,6 +366,74 @@ public class TermSettings {
         return mAllowPathPrepend;
     }
 
+    public boolean useDirectIO() {
+        return mDirectIO;
+    }
+
+    /**
+     * Number of idle shells TermService keeps started for new windows.
+     */
+    public int getSessionPoolSize() {
+        return mSessionPoolSize;
+    }
+
+    /**
+     * Minutes an idle pooled shell is kept, or 0 to keep it indefinitely.
+     */
+    public int getSessionPoolExpiry() {
+        return mSessionPoolExpiry;
+    }
+
+    public boolean floodControl() {
+        return mFloodControl;
+    }
+
+    /**
+     * Sustained output rate, in KB/s, at which flood control kicks in.
+     */
+    public int getFloodThreshold() {
+        return mFloodThreshold;
+    }
+
+    /**
+     * Minutes a background window must be idle before it is hibernated, or 0
+     * to only hibernate under memory pressure.
+     */
+    public int getHibernateTimeout() {
+        return mHibernateTimeout;
+    }
+
+    /**
+     * Heap use, as a percentage of the maximum, above which idle background
+     * windows are hibernated early, or 0 to ignore memory use.
+     */
+    public int getHibernateHeapThreshold() {
+        return mHibernateHeapThreshold;
+    }
+
+    /**
+     * Whether new sessions keep a compressed, off-heap history of their
+     * output beyond the emulator's own scrollback.
+     */
+    public boolean useLongScrollback() {
+        return mLongScrollback;
+    }
+
+    /**
+     * Whether pasted text is wrapped in bracketed paste markers.
+     */
+    public boolean useBracketedPaste() {
+        return mBracketedPaste;
+    }
+
+    /**
+     * Whether the service accepts commands from other apps over a local
+     * socket.
+     */
+    public boolean useControlSocket() {
+        return mControlSocket;
+    }
+
     public void setPrependPath(String prependPath) {
         mPrependPath = prependPath;
     }
@@ -36,10 +36,15 @@
 #define LOG_TAG "Exec"
 
 #include <sys/types.h>
+#include <sys/epoll.h>
 #include <sys/ioctl.h>
+#include <sys/syscall.h>
+#include <sys/uio.h>
 #include <sys/wait.h>
+#include <dirent.h>
 #include <errno.h>
 #include <fcntl.h>
+#include <pthread.h>
 #include <stdlib.h>
 #include <unistd.h>
 #include <termios.h>
@@ -150,78 +155,248 @@ static int create_subprocess(const char *cmd,
 }
 
 
-static jobject android_os_Exec_createSubProcess(JNIEnv *env, jobject clazz,
-    jstring cmd, jobjectArray args, jobjectArray envVars,
-    jintArray processIdArray)
+/*
+ * Like create_subprocess(), but suitable for a process with a large heap:
+ * uses vfork() so that no page tables are copied, and does all the work that
+ * allocates or touches shared state (environment merging, listing open file
+ * descriptors) in the parent before the child is created.  The pty is sized
+ * before the child starts, so the first thing the program sees is the real
+ * window size.
+ */
+extern char **environ;
+
+static char **merge_environment(char *const envp[])
 {
-    const jchar* str = cmd ? env->GetStringCritical(cmd, 0) : 0;
-    String8 cmd_8;
-    if (str) {
-        cmd_8.set(str, env->GetStringLength(cmd));
-        env->ReleaseStringCritical(cmd, str);
+    int baseCount = 0;
+    int extraCount = 0;
+    for (char **e = environ; e && *e; ++e) {
+        ++baseCount;
+    }
+    for (char *const *e = envp; e && *e; ++e) {
+        ++extraCount;
     }
 
-    jsize size = args ? env->GetArrayLength(args) : 0;
-    char **argv = NULL;
-    String8 tmp_8;
-    if (size > 0) {
-        argv = (char **)malloc((size+1)*sizeof(char *));
-        if (!argv) {
-            throwOutOfMemoryError(env, "Couldn't allocate argv array");
-            return NULL;
+    char **merged = (char **) malloc((baseCount + extraCount + 1) * sizeof(char *));
+    if (!merged) {
+        return NULL;
+    }
+
+    int count = 0;
+    for (int i = 0; i < baseCount; ++i) {
+        const char *var = environ[i];
+        size_t nameLen = strcspn(var, "=");
+        bool overridden = false;
+        for (char *const *e = envp; e && *e; ++e) {
+            if (strncmp(*e, var, nameLen) == 0 && (*e)[nameLen] == '=') {
+                overridden = true;
+                break;
+            }
         }
-        for (int i = 0; i < size; ++i) {
-            jstring arg = reinterpret_cast<jstring>(env->GetObjectArrayElement(args, i));
-            str = env->GetStringCritical(arg, 0);
-            if (!str) {
-                throwOutOfMemoryError(env, "Couldn't get argument from array");
-                return NULL;
+        if (!overridden) {
+            merged[count++] = (char *) var;
+        }
+    }
+    for (char *const *e = envp; e && *e; ++e) {
+        merged[count++] = *e;
+    }
+    merged[count] = NULL;
+    return merged;
+}
+
+/* Returns a -1 terminated list of the file descriptors above stderr open in
+   this process, or NULL if /proc/self/fd couldn't be read. */
+static int *list_open_fds()
+{
+    DIR *dir = opendir("/proc/self/fd");
+    if (!dir) {
+        return NULL;
+    }
+
+    int capacity = 64;
+    int count = 0;
+    int *fds = (int *) malloc(capacity * sizeof(int));
+    struct dirent *entry;
+    while (fds && (entry = readdir(dir)) != NULL) {
+        int fd = atoi(entry->d_name);
+        if (fd <= 2 || fd == dirfd(dir)) {
+            continue;
+        }
+        if (count + 1 >= capacity) {
+            capacity *= 2;
+            int *grown = (int *) realloc(fds, capacity * sizeof(int));
+            if (!grown) {
+                free(fds);
+                fds = NULL;
+                break;
             }
-            tmp_8.set(str, env->GetStringLength(arg));
-            env->ReleaseStringCritical(arg, str);
-            argv[i] = strdup(tmp_8.string());
+            fds = grown;
         }
-        argv[size] = NULL;
+        fds[count++] = fd;
     }
+    closedir(dir);
+    if (fds) {
+        fds[count] = -1;
+    }
+    return fds;
+}
 
-    size = envVars ? env->GetArrayLength(envVars) : 0;
-    char **envp = NULL;
-    if (size > 0) {
-        envp = (char **)malloc((size+1)*sizeof(char *));
-        if (!envp) {
-            throwOutOfMemoryError(env, "Couldn't allocate envp array");
-            return NULL;
+static int spawn_subprocess(const char *cmd, char *const argv[],
+    char *const envp[], const char *cwd, int rows, int columns,
+    int *pProcessId)
+{
+    char devname[64];
+    char *name;
+    int ptm;
+    pid_t pid;
+
+    ptm = open("/dev/ptmx", O_RDWR);
+    if (ptm < 0) {
+        LOGE("Cannot open /dev/ptmx: %s", strerror(errno));
+        return -1;
+    }
+    fcntl(ptm, F_SETFD, FD_CLOEXEC);
+
+    if (grantpt(ptm) || unlockpt(ptm) || ((name = ptsname(ptm)) == 0)) {
+        LOGE("Trouble with /dev/ptmx: %s", strerror(errno));
+        close(ptm);
+        return -1;
+    }
+    strncpy(devname, name, sizeof(devname) - 1);
+    devname[sizeof(devname) - 1] = '\0';
+
+    if (rows > 0 && columns > 0) {
+        struct winsize sz;
+        memset(&sz, 0, sizeof(sz));
+        sz.ws_row = rows;
+        sz.ws_col = columns;
+        ioctl(ptm, TIOCSWINSZ, &sz);
+    }
+
+    char **mergedEnv = merge_environment(envp);
+    int *openFds = list_open_fds();
+    if (!mergedEnv) {
+        free(openFds);
+        close(ptm);
+        return -1;
+    }
+
+    /* Until the child has reset its signal handlers, a signal must not
+       run one of ours on our stack and memory (SIGCHLD's writes to the
+       reaper's pipe, say).  Block everything around vfork(); the child
+       restores the mask just before execve(). */
+    sigset_t allSignals, oldMask;
+    sigfillset(&allSignals);
+    pthread_sigmask(SIG_SETMASK, &allSignals, &oldMask);
+
+    pid = vfork();
+    if (pid == 0) {
+        /* Child: shares our memory until execve(), so only make system
+           calls and don't return from this function */
+        for (int sig = 1; sig < _NSIG; ++sig) {
+            struct sigaction sa;
+            if (sigaction(sig, NULL, &sa) == 0 && sa.sa_handler != SIG_IGN
+                    && sa.sa_handler != SIG_DFL) {
+                sa.sa_handler = SIG_DFL;
+                sa.sa_flags = 0;
+                sigemptyset(&sa.sa_mask);
+                sigaction(sig, &sa, NULL);
+            }
+        }
+
+        setsid();
+
+        int pts = open(devname, O_RDWR);
+        if (pts < 0) {
+            _exit(127);
+        }
+        dup2(pts, 0);
+        dup2(pts, 1);
+        dup2(pts, 2);
+        if (pts > 2) {
+            close(pts);
         }
-        for (int i = 0; i < size; ++i) {
-            jstring var = reinterpret_cast<jstring>(env->GetObjectArrayElement(envVars, i));
-            str = env->GetStringCritical(var, 0);
-            if (!str) {
-                throwOutOfMemoryError(env, "Couldn't get env var from array");
-                return NULL;
+
+        if (openFds) {
+            for (int *fd = openFds; *fd >= 0; ++fd) {
+                close(*fd);
             }
-            tmp_8.set(str, env->GetStringLength(var));
-            env->ReleaseStringCritical(var, str);
-            envp[i] = strdup(tmp_8.string());
         }
-        envp[size] = NULL;
+
+        if (cwd && chdir(cwd) < 0) {
+            _exit(127);
+        }
+
+        sigprocmask(SIG_SETMASK, &oldMask, NULL);
+        execve(cmd, argv, mergedEnv);
+        _exit(127);
     }
 
-    int procId;
-    int ptm = create_subprocess(cmd_8.string(), argv, envp, &procId);
+    pthread_sigmask(SIG_SETMASK, &oldMask, NULL);
+    free(mergedEnv);
+    free(openFds);
 
-    if (argv) {
-        for (char **tmp = argv; *tmp; ++tmp) {
-            free(*tmp);
+    if (pid < 0) {
+        LOGE("vfork failed: %s", strerror(errno));
+        close(ptm);
+        return -1;
+    }
+
+    *pProcessId = (int) pid;
+    return ptm;
+}
+
+/* Converts a Java String[] to a NULL-terminated array of C strings, or
+   returns NULL (with an exception pending on failure) */
+static char **to_cstring_array(JNIEnv *env, jobjectArray array, const char *what)
+{
+    jsize size = array ? env->GetArrayLength(array) : 0;
+    if (size <= 0) {
+        return NULL;
+    }
+
+    char **result = (char **) calloc(size + 1, sizeof(char *));
+    if (!result) {
+        throwOutOfMemoryError(env, what);
+        return NULL;
+    }
+    String8 tmp_8;
+    for (int i = 0; i < size; ++i) {
+        jstring item = reinterpret_cast<jstring>(env->GetObjectArrayElement(array, i));
+        const jchar *str = env->GetStringCritical(item, 0);
+        if (!str) {
+            throwOutOfMemoryError(env, what);
+            return NULL;
         }
-        free(argv);
+        tmp_8.set(str, env->GetStringLength(item));
+        env->ReleaseStringCritical(item, str);
+        result[i] = strdup(tmp_8.string());
     }
-    if (envp) {
-        for (char **tmp = envp; *tmp; ++tmp) {
+    result[size] = NULL;
+    return result;
+}
+
+static void free_cstring_array(char **array)
+{
+    if (array) {
+        for (char **tmp = array; *tmp; ++tmp) {
             free(*tmp);
         }
-        free(envp);
+        free(array);
+    }
+}
+
+static void to_string8(JNIEnv *env, jstring string, String8 *result)
+{
+    const jchar* str = string ? env->GetStringCritical(string, 0) : 0;
+    if (str) {
+        result->set(str, env->GetStringLength(string));
+        env->ReleaseStringCritical(string, str);
     }
+}
 
+static jobject new_subprocess_result(JNIEnv *env, int ptm, int procId,
+    jintArray processIdArray)
+{
     if (processIdArray) {
         int procIdLen = env->GetArrayLength(processIdArray);
         if (procIdLen > 0) {
@@ -247,6 +422,61 @@ static jobject android_os_Exec_createSubProcess(JNIEnv *env, jobject clazz,
     return result;
 }
 
+static jobject android_os_Exec_createSubProcess(JNIEnv *env, jobject clazz,
+    jstring cmd, jobjectArray args, jobjectArray envVars,
+    jintArray processIdArray)
+{
+    String8 cmd_8;
+    to_string8(env, cmd, &cmd_8);
+
+    char **argv = to_cstring_array(env, args, "Couldn't allocate argv array");
+    if (env->ExceptionCheck()) {
+        return NULL;
+    }
+    char **envp = to_cstring_array(env, envVars, "Couldn't allocate envp array");
+    if (env->ExceptionCheck()) {
+        free_cstring_array(argv);
+        return NULL;
+    }
+
+    int procId;
+    int ptm = create_subprocess(cmd_8.string(), argv, envp, &procId);
+
+    free_cstring_array(argv);
+    free_cstring_array(envp);
+
+    return new_subprocess_result(env, ptm, procId, processIdArray);
+}
+
+static jobject android_os_Exec_spawnSubProcess(JNIEnv *env, jobject clazz,
+    jstring cmd, jobjectArray args, jobjectArray envVars, jstring cwd,
+    jint rows, jint columns, jintArray processIdArray)
+{
+    String8 cmd_8;
+    String8 cwd_8;
+    to_string8(env, cmd, &cmd_8);
+    to_string8(env, cwd, &cwd_8);
+
+    char **argv = to_cstring_array(env, args, "Couldn't allocate argv array");
+    if (env->ExceptionCheck()) {
+        return NULL;
+    }
+    char **envp = to_cstring_array(env, envVars, "Couldn't allocate envp array");
+    if (env->ExceptionCheck()) {
+        free_cstring_array(argv);
+        return NULL;
+    }
+
+    int procId = 0;
+    int ptm = spawn_subprocess(cmd_8.string(), argv, envp, cwd_8.string(),
+            rows, columns, &procId);
+
+    free_cstring_array(argv);
+    free_cstring_array(envp);
+
+    return new_subprocess_result(env, ptm, procId, processIdArray);
+}
+
 
 static void android_os_Exec_setPtyWindowSize(JNIEnv *env, jobject clazz,
     jobject fileDescriptor, jint row, jint col, jint xpixel, jint ypixel)
@@ -318,6 +548,476 @@ static void android_os_Exec_hangupProcessGroup(JNIEnv *env, jobject clazz,
     kill(-procId, SIGHUP);
 }
 
+static jint android_os_Exec_createMultiplexer(JNIEnv *env, jobject clazz)
+{
+    int muxFd = epoll_create(16);
+    if (muxFd < 0) {
+        LOGE("epoll_create failed: %s", strerror(errno));
+        return -1;
+    }
+    fcntl(muxFd, F_SETFD, FD_CLOEXEC);
+    return muxFd;
+}
+
+static jboolean multiplexer_ctl(JNIEnv *env, jint muxFd, int op,
+    jobject fileDescriptor, jint token)
+{
+    int fd = env->GetIntField(fileDescriptor, field_fileDescriptor_descriptor);
+
+    if (env->ExceptionOccurred() != NULL) {
+        return JNI_FALSE;
+    }
+
+    struct epoll_event event;
+    memset(&event, 0, sizeof(event));
+    /* One-shot: the fd is disarmed after each event until the session has
+       consumed the data and rearms it, so a busy pty can't flood us */
+    event.events = EPOLLIN | EPOLLONESHOT;
+    event.data.u32 = (uint32_t) token;
+
+    if (epoll_ctl(muxFd, op, fd, &event) < 0) {
+        LOGE("epoll_ctl(%d) on fd %d failed: %s", op, fd, strerror(errno));
+        return JNI_FALSE;
+    }
+    return JNI_TRUE;
+}
+
+static jboolean android_os_Exec_multiplexerAdd(JNIEnv *env, jobject clazz,
+    jint muxFd, jobject fileDescriptor, jint token)
+{
+    return multiplexer_ctl(env, muxFd, EPOLL_CTL_ADD, fileDescriptor, token);
+}
+
+static jboolean android_os_Exec_multiplexerRearm(JNIEnv *env, jobject clazz,
+    jint muxFd, jobject fileDescriptor, jint token)
+{
+    return multiplexer_ctl(env, muxFd, EPOLL_CTL_MOD, fileDescriptor, token);
+}
+
+static void android_os_Exec_multiplexerRemove(JNIEnv *env, jobject clazz,
+    jint muxFd, jobject fileDescriptor)
+{
+    int fd = env->GetIntField(fileDescriptor, field_fileDescriptor_descriptor);
+
+    if (env->ExceptionOccurred() != NULL) {
+        return;
+    }
+
+    // Pre-2.6.9 kernels require a non-NULL event even for EPOLL_CTL_DEL
+    struct epoll_event event;
+    memset(&event, 0, sizeof(event));
+    epoll_ctl(muxFd, EPOLL_CTL_DEL, fd, &event);
+}
+
+#define MULTIPLEXER_MAX_EVENTS 64
+
+static jint android_os_Exec_multiplexerWait(JNIEnv *env, jobject clazz,
+    jint muxFd, jintArray readyTokens, jint timeoutMillis)
+{
+    struct epoll_event events[MULTIPLEXER_MAX_EVENTS];
+    int maxEvents = env->GetArrayLength(readyTokens);
+    if (maxEvents > MULTIPLEXER_MAX_EVENTS) {
+        maxEvents = MULTIPLEXER_MAX_EVENTS;
+    }
+
+    int count = epoll_wait(muxFd, events, maxEvents, timeoutMillis);
+    if (count < 0) {
+        return (errno == EINTR) ? 0 : -1;
+    }
+
+    jint tokens[MULTIPLEXER_MAX_EVENTS];
+    for (int i = 0; i < count; ++i) {
+        tokens[i] = (jint) events[i].data.u32;
+    }
+    env->SetIntArrayRegion(readyTokens, 0, count, tokens);
+    return count;
+}
+
+static int throwIOException(JNIEnv *env, int error)
+{
+    jclass exClass = env->FindClass("java/io/IOException");
+    return env->ThrowNew(exClass, strerror(error));
+}
+
+/*
+ * Direct buffer I/O.  These read and write the memory behind a direct
+ * ByteBuffer, so pty traffic never goes through a temporary Java array.
+ */
+
+static char *direct_buffer_range(JNIEnv *env, jobject byteBuffer,
+    jint offset, jint count)
+{
+    char *base = (char *) env->GetDirectBufferAddress(byteBuffer);
+    jlong capacity = env->GetDirectBufferCapacity(byteBuffer);
+    if (base == NULL || capacity < 0) {
+        jclass exClass = env->FindClass("java/lang/IllegalArgumentException");
+        env->ThrowNew(exClass, "not a direct buffer");
+        return NULL;
+    }
+    if (offset < 0 || count < 0 || (jlong) offset + count > capacity) {
+        jclass exClass = env->FindClass("java/lang/IndexOutOfBoundsException");
+        env->ThrowNew(exClass, NULL);
+        return NULL;
+    }
+    return base + offset;
+}
+
+static jint android_os_Exec_readDirect(JNIEnv *env, jobject clazz,
+    jobject fileDescriptor, jobject byteBuffer, jint offset, jint count)
+{
+    int fd = env->GetIntField(fileDescriptor, field_fileDescriptor_descriptor);
+    if (env->ExceptionOccurred() != NULL) {
+        return -1;
+    }
+    char *buf = direct_buffer_range(env, byteBuffer, offset, count);
+    if (buf == NULL) {
+        return -1;
+    }
+
+    ssize_t result;
+    do {
+        result = read(fd, buf, count);
+    } while (result < 0 && errno == EINTR);
+
+    if (result < 0) {
+        // EIO is how the master side sees the slave being hung up
+        if (errno == EIO) {
+            return -1;
+        }
+        throwIOException(env, errno);
+        return -1;
+    }
+    return (result == 0) ? -1 : (jint) result;
+}
+
+static jint android_os_Exec_writeDirect(JNIEnv *env, jobject clazz,
+    jobject fileDescriptor, jobject byteBuffer, jint offset, jint count)
+{
+    int fd = env->GetIntField(fileDescriptor, field_fileDescriptor_descriptor);
+    if (env->ExceptionOccurred() != NULL) {
+        return -1;
+    }
+    char *buf = direct_buffer_range(env, byteBuffer, offset, count);
+    if (buf == NULL) {
+        return -1;
+    }
+
+    jint written = 0;
+    while (written < count) {
+        ssize_t result = write(fd, buf + written, count - written);
+        if (result < 0) {
+            if (errno == EINTR) {
+                continue;
+            }
+            throwIOException(env, errno);
+            return -1;
+        }
+        written += result;
+    }
+    return written;
+}
+
+#define WRITEV_MAX_SEGMENTS 64
+
+static jint android_os_Exec_writevDirect(JNIEnv *env, jobject clazz,
+    jobject fileDescriptor, jobjectArray byteBuffers, jintArray counts,
+    jint segmentCount)
+{
+    int fd = env->GetIntField(fileDescriptor, field_fileDescriptor_descriptor);
+    if (env->ExceptionOccurred() != NULL) {
+        return -1;
+    }
+    if (segmentCount < 0 || segmentCount > WRITEV_MAX_SEGMENTS
+            || segmentCount > env->GetArrayLength(byteBuffers)
+            || segmentCount > env->GetArrayLength(counts)) {
+        jclass exClass = env->FindClass("java/lang/IndexOutOfBoundsException");
+        env->ThrowNew(exClass, NULL);
+        return -1;
+    }
+
+    struct iovec iov[WRITEV_MAX_SEGMENTS];
+    jint lengths[WRITEV_MAX_SEGMENTS];
+    env->GetIntArrayRegion(counts, 0, segmentCount, lengths);
+    for (int i = 0; i < segmentCount; ++i) {
+        jobject buffer = env->GetObjectArrayElement(byteBuffers, i);
+        char *base = direct_buffer_range(env, buffer, 0, lengths[i]);
+        env->DeleteLocalRef(buffer);
+        if (base == NULL) {
+            return -1;
+        }
+        iov[i].iov_base = base;
+        iov[i].iov_len = lengths[i];
+    }
+
+    // Retry short writes, starting from the first unwritten byte
+    struct iovec *next = iov;
+    int remaining = segmentCount;
+    int calls = 0;
+    while (remaining > 0) {
+        ssize_t result = writev(fd, next, remaining);
+        if (result < 0) {
+            if (errno == EINTR) {
+                continue;
+            }
+            throwIOException(env, errno);
+            return -1;
+        }
+        ++calls;
+        while (remaining > 0 && (size_t) result >= next->iov_len) {
+            result -= next->iov_len;
+            ++next;
+            --remaining;
+        }
+        if (remaining > 0) {
+            next->iov_base = (char *) next->iov_base + result;
+            next->iov_len -= result;
+        }
+    }
+    return calls;
+}
+
+/*
+ * Process-wide child reaper.
+ *
+ * On kernels with pidfd_open() (Linux 5.3+), each watched child gets a pidfd
+ * in the reaper's epoll set and becomes readable when the child exits.
+ * Otherwise we fall back to a SIGCHLD handler writing to a self-pipe, and
+ * poll every watched pid with WNOHANG whenever the pipe is readable.  Either
+ * way only pids handed to reaperWatch() are ever waited for, so children
+ * started by other code in the process (java.lang.Process) are left alone.
+ */
+
+#ifndef __NR_pidfd_open
+#define __NR_pidfd_open 434
+#endif
+
+#define REAPER_MAX_CHILDREN 256
+#define REAPER_MAX_EVENTS 16
+// epoll token for the self-pipe; never a valid pid
+#define REAPER_PIPE_TOKEN 0
+
+static pthread_mutex_t reaper_lock = PTHREAD_MUTEX_INITIALIZER;
+static int reaper_epoll_fd = -1;
+static int reaper_pipe[2] = { -1, -1 };
+static bool reaper_use_pidfd = false;
+static struct sigaction reaper_old_sigchld;
+
+// Watched children; pidfd is -1 when running on the SIGCHLD fallback
+static struct {
+    pid_t pid;
+    int pidfd;
+} reaper_children[REAPER_MAX_CHILDREN];
+static int reaper_child_count = 0;
+
+static void reaper_sigchld_handler(int sig, siginfo_t *info, void *context)
+{
+    int savedErrno = errno;
+    char c = 0;
+    write(reaper_pipe[1], &c, 1);
+    errno = savedErrno;
+
+    if (reaper_old_sigchld.sa_flags & SA_SIGINFO) {
+        if (reaper_old_sigchld.sa_sigaction) {
+            reaper_old_sigchld.sa_sigaction(sig, info, context);
+        }
+    } else if (reaper_old_sigchld.sa_handler != SIG_DFL
+            && reaper_old_sigchld.sa_handler != SIG_IGN) {
+        reaper_old_sigchld.sa_handler(sig);
+    }
+}
+
+static void reaper_wakeup()
+{
+    char c = 0;
+    write(reaper_pipe[1], &c, 1);
+}
+
+/* pidfd_open() is only in the app seccomp allowlist from Android 12 (API
+   31); before that, calling it raises SIGSYS instead of failing with
+   ENOSYS, so it isn't even probed for */
+#define REAPER_PIDFD_MIN_SDK 31
+
+static jboolean android_os_Exec_reaperInit(JNIEnv *env, jobject clazz, jint sdk)
+{
+    pthread_mutex_lock(&reaper_lock);
+    if (reaper_epoll_fd >= 0) {
+        pthread_mutex_unlock(&reaper_lock);
+        return JNI_TRUE;
+    }
+
+    int epfd = epoll_create(REAPER_MAX_EVENTS);
+    if (epfd < 0 || pipe(reaper_pipe) < 0) {
+        LOGE("Couldn't set up child reaper: %s", strerror(errno));
+        if (epfd >= 0) {
+            close(epfd);
+        }
+        pthread_mutex_unlock(&reaper_lock);
+        return JNI_FALSE;
+    }
+    fcntl(epfd, F_SETFD, FD_CLOEXEC);
+    for (int i = 0; i < 2; ++i) {
+        fcntl(reaper_pipe[i], F_SETFD, FD_CLOEXEC);
+        fcntl(reaper_pipe[i], F_SETFL, O_NONBLOCK);
+    }
+
+    struct epoll_event event;
+    memset(&event, 0, sizeof(event));
+    event.events = EPOLLIN;
+    event.data.u32 = REAPER_PIPE_TOKEN;
+    epoll_ctl(epfd, EPOLL_CTL_ADD, reaper_pipe[0], &event);
+
+    int probe = (sdk >= REAPER_PIDFD_MIN_SDK) ? syscall(__NR_pidfd_open, getpid(), 0) : -1;
+    if (probe >= 0) {
+        close(probe);
+        reaper_use_pidfd = true;
+    } else {
+        struct sigaction sa;
+        memset(&sa, 0, sizeof(sa));
+        sa.sa_sigaction = reaper_sigchld_handler;
+        sa.sa_flags = SA_SIGINFO | SA_RESTART | SA_NOCLDSTOP;
+        sigemptyset(&sa.sa_mask);
+        sigaction(SIGCHLD, &sa, &reaper_old_sigchld);
+    }
+    LOGI("Child reaper using %s", reaper_use_pidfd ? "pidfd" : "SIGCHLD");
+
+    reaper_epoll_fd = epfd;
+    pthread_mutex_unlock(&reaper_lock);
+    return JNI_TRUE;
+}
+
+static jboolean android_os_Exec_reaperWatch(JNIEnv *env, jobject clazz,
+    jint procId)
+{
+    pthread_mutex_lock(&reaper_lock);
+    if (reaper_epoll_fd < 0 || reaper_child_count >= REAPER_MAX_CHILDREN) {
+        pthread_mutex_unlock(&reaper_lock);
+        return JNI_FALSE;
+    }
+
+    int pidfd = -1;
+    if (reaper_use_pidfd) {
+        pidfd = syscall(__NR_pidfd_open, procId, 0);
+        if (pidfd < 0) {
+            LOGE("pidfd_open(%d) failed: %s", procId, strerror(errno));
+            pthread_mutex_unlock(&reaper_lock);
+            return JNI_FALSE;
+        }
+        fcntl(pidfd, F_SETFD, FD_CLOEXEC);
+
+        struct epoll_event event;
+        memset(&event, 0, sizeof(event));
+        event.events = EPOLLIN;
+        event.data.u32 = (uint32_t) procId;
+        if (epoll_ctl(reaper_epoll_fd, EPOLL_CTL_ADD, pidfd, &event) < 0) {
+            close(pidfd);
+            pthread_mutex_unlock(&reaper_lock);
+            return JNI_FALSE;
+        }
+    }
+
+    reaper_children[reaper_child_count].pid = procId;
+    reaper_children[reaper_child_count].pidfd = pidfd;
+    ++reaper_child_count;
+    pthread_mutex_unlock(&reaper_lock);
+
+    if (!reaper_use_pidfd) {
+        // The child may have exited before we started watching it
+        reaper_wakeup();
+    }
+    return JNI_TRUE;
+}
+
+/* Must be called with reaper_lock held.  Returns true if the child at index
+   has exited (or was reaped elsewhere) and stores its exit code. */
+static bool reaper_collect(int index, int *result)
+{
+    int status;
+    pid_t pid = reaper_children[index].pid;
+    pid_t ret = waitpid(pid, &status, WNOHANG);
+    if (ret == 0 || (ret < 0 && errno == EINTR)) {
+        return false;
+    }
+
+    *result = 0;
+    if (ret > 0 && WIFEXITED(status)) {
+        *result = WEXITSTATUS(status);
+    }
+
+    int pidfd = reaper_children[index].pidfd;
+    if (pidfd >= 0) {
+        struct epoll_event event;
+        memset(&event, 0, sizeof(event));
+        epoll_ctl(reaper_epoll_fd, EPOLL_CTL_DEL, pidfd, &event);
+        close(pidfd);
+    }
+    reaper_children[index] = reaper_children[--reaper_child_count];
+    return true;
+}
+
+static jint android_os_Exec_reaperWait(JNIEnv *env, jobject clazz,
+    jintArray exits)
+{
+    struct epoll_event events[REAPER_MAX_EVENTS];
+    int maxExits = env->GetArrayLength(exits) / 2;
+    if (maxExits > REAPER_MAX_CHILDREN) {
+        maxExits = REAPER_MAX_CHILDREN;
+    }
+
+    int count = epoll_wait(reaper_epoll_fd, events, REAPER_MAX_EVENTS, -1);
+    if (count < 0) {
+        return (errno == EINTR) ? 0 : -1;
+    }
+
+    jint results[REAPER_MAX_CHILDREN * 2];
+    int exited = 0;
+    bool scan = false;
+
+    pthread_mutex_lock(&reaper_lock);
+    for (int i = 0; i < count; ++i) {
+        if (events[i].data.u32 == REAPER_PIPE_TOKEN) {
+            char buf[64];
+            while (read(reaper_pipe[0], buf, sizeof(buf)) > 0) {
+            }
+            scan = true;
+            continue;
+        }
+        pid_t pid = (pid_t) events[i].data.u32;
+        for (int j = 0; j < reaper_child_count && exited < maxExits; ++j) {
+            if (reaper_children[j].pid == pid) {
+                int result;
+                if (reaper_collect(j, &result)) {
+                    results[exited * 2] = pid;
+                    results[exited * 2 + 1] = result;
+                    ++exited;
+                }
+                break;
+            }
+        }
+    }
+    if (scan) {
+        for (int j = 0; j < reaper_child_count && exited < maxExits; ) {
+            pid_t pid = reaper_children[j].pid;
+            int result;
+            if (reaper_collect(j, &result)) {
+                results[exited * 2] = pid;
+                results[exited * 2 + 1] = result;
+                ++exited;
+                // reaper_collect moved the last entry into slot j
+            } else {
+                ++j;
+            }
+        }
+        if (exited == maxExits) {
+            // Out of room; come back for the rest
+            reaper_wakeup();
+        }
+    }
+    pthread_mutex_unlock(&reaper_lock);
+
+    env->SetIntArrayRegion(exits, 0, exited * 2, results);
+    return exited;
+}
+
 
 static int register_FileDescriptor(JNIEnv *env)
 {
@@ -356,6 +1056,8 @@ static const char *classPathName = "jackpal/androidterm/Exec";
 static JNINativeMethod method_table[] = {
     { "createSubprocess", "(Ljava/lang/String;[Ljava/lang/String;[Ljava/lang/String;[I)Ljava/io/FileDescriptor;",
         (void*) android_os_Exec_createSubProcess },
+    { "createSubprocess", "(Ljava/lang/String;[Ljava/lang/String;[Ljava/lang/String;Ljava/lang/String;II[I)Ljava/io/FileDescriptor;",
+        (void*) android_os_Exec_spawnSubProcess },
     { "setPtyWindowSize", "(Ljava/io/FileDescriptor;IIII)V",
         (void*) android_os_Exec_setPtyWindowSize},
     { "setPtyUTF8Mode", "(Ljava/io/FileDescriptor;Z)V",
@@ -365,7 +1067,29 @@ static JNINativeMethod method_table[] = {
     { "close", "(Ljava/io/FileDescriptor;)V",
         (void*) android_os_Exec_close},
     { "hangupProcessGroup", "(I)V",
-        (void*) android_os_Exec_hangupProcessGroup}
+        (void*) android_os_Exec_hangupProcessGroup},
+    { "createMultiplexer", "()I",
+        (void*) android_os_Exec_createMultiplexer},
+    { "multiplexerAdd", "(ILjava/io/FileDescriptor;I)Z",
+        (void*) android_os_Exec_multiplexerAdd},
+    { "multiplexerRearm", "(ILjava/io/FileDescriptor;I)Z",
+        (void*) android_os_Exec_multiplexerRearm},
+    { "multiplexerRemove", "(ILjava/io/FileDescriptor;)V",
+        (void*) android_os_Exec_multiplexerRemove},
+    { "multiplexerWait", "(I[II)I",
+        (void*) android_os_Exec_multiplexerWait},
+    { "readDirect", "(Ljava/io/FileDescriptor;Ljava/nio/ByteBuffer;II)I",
+        (void*) android_os_Exec_readDirect},
+    { "writeDirect", "(Ljava/io/FileDescriptor;Ljava/nio/ByteBuffer;II)I",
+        (void*) android_os_Exec_writeDirect},
+    { "writevDirect", "(Ljava/io/FileDescriptor;[Ljava/nio/ByteBuffer;[II)I",
+        (void*) android_os_Exec_writevDirect},
+    { "reaperInit", "(I)Z",
+        (void*) android_os_Exec_reaperInit},
+    { "reaperWatch", "(I)Z",
+        (void*) android_os_Exec_reaperWatch},
+    { "reaperWait", "([I)I",
+        (void*) android_os_Exec_reaperWait}
 };
 
 int init_Exec(JNIEnv *env) {